@@ -61,7 +61,8 @@ public class PackBuilder implements Callable<PackBuilder>, ProgressObservable {
                 "--version", version,
                 "--manifest-dest", new File(outputDir, manifestFilename).getAbsolutePath(),
                 "-i", pack.getDirectory().getAbsolutePath(),
-                "-o", outputDir.getAbsolutePath()
+                "-o", outputDir.getAbsolutePath(),
+                "--incremental"
         };
         PackageBuilder.main(args);
 
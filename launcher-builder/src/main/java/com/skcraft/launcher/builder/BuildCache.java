@@ -0,0 +1,138 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.builder;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.skcraft.launcher.persistence.Binary;
+import lombok.Data;
+import lombok.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Remembers the size, modification time and hash of each source file of
+ * a package from the previous build, so that files that have not changed
+ * do not have to be hashed again.
+ */
+@Data
+@Binary
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BuildCache {
+
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Get the hash of the file if it has not changed since it was recorded.
+     *
+     * @param path the path of the file in the package
+     * @param file the file
+     * @return the SHA-1 hash, or null if the file is new or has changed
+     */
+    public synchronized String getHash(@NonNull String path, @NonNull File file) {
+        Entry entry = entries.get(path);
+        if (entry == null || entry.getHash() == null) {
+            return null;
+        }
+
+        Entry current = stat(file);
+        if (current != null && current.matches(entry)) {
+            return entry.getHash();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Record the hash of the file.
+     *
+     * @param path the path of the file in the package
+     * @param file the file
+     * @param hash the SHA-1 hash
+     */
+    public synchronized void put(@NonNull String path, @NonNull File file, @NonNull String hash) {
+        Entry entry = stat(file);
+        if (entry != null) {
+            entry.setHash(hash);
+            entries.put(path, entry);
+        } else {
+            entries.remove(path);
+        }
+    }
+
+    /**
+     * Compare this cache to the cache of a previous build.
+     *
+     * @param previous the previous cache
+     * @return the changes
+     */
+    public synchronized Changes getChanges(@NonNull BuildCache previous) {
+        Changes changes = new Changes();
+
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry old = previous.getEntries().get(entry.getKey());
+            if (old == null) {
+                changes.getAdded().add(entry.getKey());
+            } else if (!entry.getValue().getHash().equals(old.getHash())) {
+                changes.getChanged().add(entry.getKey());
+            }
+        }
+
+        for (String path : previous.getEntries().keySet()) {
+            if (!entries.containsKey(path)) {
+                changes.getRemoved().add(path);
+            }
+        }
+
+        Collections.sort(changes.getAdded());
+        Collections.sort(changes.getChanged());
+        Collections.sort(changes.getRemoved());
+        return changes;
+    }
+
+    private static Entry stat(File file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+
+            Entry entry = new Entry();
+            entry.setSize(attributes.size());
+            entry.setModified(attributes.lastModifiedTime().toMillis());
+            return entry;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Data
+    public static class Entry {
+        private long size;
+        private long modified;
+        private String hash;
+
+        private boolean matches(Entry other) {
+            return size == other.size && modified == other.modified;
+        }
+    }
+
+    /**
+     * The paths that were added, changed or removed between two builds.
+     */
+    @Data
+    public static class Changes {
+        private final List<String> added = new ArrayList<String>();
+        private final List<String> changed = new ArrayList<String>();
+        private final List<String> removed = new ArrayList<String>();
+
+        public boolean isEmpty() {
+            return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+        }
+    }
+
+}
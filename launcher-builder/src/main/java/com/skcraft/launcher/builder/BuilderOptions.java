@@ -19,6 +19,8 @@ public class BuilderOptions {
     public static final String DEFAULT_VERSION_FILENAME = "version.json";
     public static final String DEFAULT_SRC_DIRNAME = "src";
     public static final String DEFAULT_LOADERS_DIRNAME = "loaders";
+    public static final String DEFAULT_BUILD_CACHE_FILENAME = ".build_cache";
+    public static final String DEFAULT_LIBRARY_CACHE_FILENAME = ".library_cache";
 
     // Configuration
 
@@ -57,6 +59,10 @@ public class BuilderOptions {
     private File objectsDir;
     @Parameter(names = "--libraries-dest")
     private File librariesDir;
+    @Parameter(names = "--build-cache")
+    private File buildCachePath;
+    @Parameter(names = "--library-cache")
+    private File libraryCachePath;
 
     @Parameter(names = "--libs-url")
     private String librariesLocation = "libraries";
@@ -66,6 +72,12 @@ public class BuilderOptions {
     // Misc
     @Parameter(names = "--pretty-print")
     private boolean prettyPrinting;
+    @Parameter(names = "--incremental")
+    private boolean incremental;
+    @Parameter(names = "--threads")
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    @Parameter(names = "--download-threads")
+    private int downloadThreadCount = 6;
 
     public void choosePaths() throws ParameterException {
         if (configPath == null) {
@@ -97,6 +109,15 @@ public class BuilderOptions {
             requireOutputPath("--libs-dest");
             librariesDir = new File(outputPath, librariesLocation);
         }
+
+        if (buildCachePath == null && (incremental || outputPath != null)) {
+            requireOutputPath("--build-cache");
+            buildCachePath = new File(outputPath, DEFAULT_BUILD_CACHE_FILENAME);
+        }
+
+        if (libraryCachePath == null && outputPath != null) {
+            libraryCachePath = new File(outputPath, DEFAULT_LIBRARY_CACHE_FILENAME);
+        }
     }
 
     private void requireOutputPath(String name) throws ParameterException {
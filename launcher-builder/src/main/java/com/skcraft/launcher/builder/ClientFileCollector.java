@@ -11,21 +11,30 @@ import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 import com.skcraft.launcher.model.modpack.FileInstall;
 import com.skcraft.launcher.model.modpack.Manifest;
+import com.skcraft.launcher.model.modpack.ManifestEntry;
 import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NonNull;
+import lombok.Setter;
 import lombok.extern.java.Log;
 import org.apache.commons.io.FilenameUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Level;
 
 /**
  * Walks a path and adds hashed path versions to the given
  * {@link com.skcraft.launcher.model.modpack.Manifest}.
+ *
+ * <p>Files are hashed and copied on a pool of {@link #getThreadCount()}
+ * threads once the walk is complete, and then added to the manifest
+ * sorted by path so that the same files always produce the same
+ * manifest.</p>
  */
 @Log
 public class ClientFileCollector extends DirectoryWalker {
@@ -36,6 +45,8 @@ public class ClientFileCollector extends DirectoryWalker {
     {
         private final File file;
         private final String relPath;
+        private final String to;
+        private final boolean redirected;
     }
 
     private final Manifest manifest;
@@ -43,6 +54,12 @@ public class ClientFileCollector extends DirectoryWalker {
     private final File destDir;
     private HashFunction hf = Hashing.sha1();
     private final ArrayList<FileEntry> fileEntries = new ArrayList<>();
+    @Setter
+    private BuildCache previousCache;
+    @Setter
+    private BuildCache buildCache;
+    @Getter @Setter
+    private int threadCount = Runtime.getRuntime().availableProcessors();
 
     /**
      * Create a new collector.
@@ -65,61 +82,133 @@ public class ClientFileCollector extends DirectoryWalker {
 
     @Override
     protected void onFile(File file, String relPath) throws IOException {
-        if (file.getName().endsWith(FileInfoScanner.FILE_SUFFIX)
-                || file.getName().endsWith(FileUrlScanner.URL_FILE_SUFFIX)) {
+        if (file.getName().endsWith(FileInfoScanner.FILE_SUFFIX)) {
             return;
         }
 
-        fileEntries.add(new FileEntry(file, relPath));
+        if (file.getName().endsWith(FileUrlScanner.URL_FILE_SUFFIX)) {
+            // The target may not exist until FileUrlScanner downloads it after the walk
+            String targetName = file.getName().replace(FileUrlScanner.URL_FILE_SUFFIX, "");
+            File target = new File(file.getParentFile(), targetName);
+            String targetPath = relPath.substring(0, relPath.length() - file.getName().length()) + targetName;
+            addEntry(target, targetPath, true);
+        } else {
+            addEntry(file, relPath, false);
+        }
+    }
+
+    private void addEntry(File file, String relPath, boolean redirected) {
+        String to = FilenameUtils.separatorsToUnix(FilenameUtils.normalize(relPath));
+        synchronized (fileEntries) {
+            fileEntries.add(new FileEntry(file, relPath, to, redirected));
+        }
     }
 
     @Override
-    protected void onWalkComplete() throws IOException
-    {
-        AtomicBoolean failed = new AtomicBoolean(false);
-        fileEntries.parallelStream().forEach(fileEntry -> {
-            try {
-                FileInstall entry = new FileInstall();
-                String hash = Files.hash(fileEntry.file, hf).toString();
-                String to = FilenameUtils.separatorsToUnix(FilenameUtils.normalize(fileEntry.relPath));
-
-                // url.txt override file
-                File urlFile = new File(fileEntry.file.getAbsoluteFile().getParentFile(),
-                        fileEntry.file.getName() + FileUrlScanner.URL_FILE_SUFFIX);
-                String location;
-                boolean copy = true;
-                if (urlFile.exists() && FileUrlScanner.isEnabled()) {
-                    FileUrlRedirect redirect = FileUrlRedirect.fromFile(urlFile);
-
-                    location = redirect.getUrl().toString();
-                    copy = false;
-                } else {
-                    location = hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/" + hash;
-                }
+    protected void onWalkComplete() throws IOException {
+        Collections.sort(fileEntries, new Comparator<FileEntry>() {
+            @Override
+            public int compare(FileEntry o1, FileEntry o2) {
+                int cmp = o1.to.compareTo(o2.to);
+                return cmp != 0 ? cmp : o1.file.compareTo(o2.file);
+            }
+        });
+
+        // A target of a .url.txt file is seen twice if it already existed
+        Set<File> seen = new HashSet<File>();
+        Iterator<FileEntry> it = fileEntries.iterator();
+        while (it.hasNext()) {
+            FileEntry fileEntry = it.next();
+            if (!seen.add(fileEntry.file) || (fileEntry.redirected && !fileEntry.file.exists())) {
+                it.remove();
+            }
+        }
+
+        // Every pattern has been registered by now, as the collector is the last walker
+        applicator.prepare();
 
-                File destPath = new File(destDir, location);
-                entry.setHash(hash);
-                entry.setLocation(location);
-                entry.setTo(to);
-                entry.setSize(fileEntry.file.length());
-                applicator.apply(entry);
-                destPath.getParentFile().mkdirs();
-                //ClientFileCollector.log.info(String.format("Adding %s from %s...", fileEntry.relPath, fileEntry.file.getAbsolutePath()));
-                if (copy) {
-                    Files.copy(fileEntry.file, destPath);
+        List<Callable<FileInstall>> tasks = new ArrayList<Callable<FileInstall>>();
+        for (final FileEntry fileEntry : fileEntries) {
+            tasks.add(new Callable<FileInstall>() {
+                @Override
+                public FileInstall call() throws Exception {
+                    return createEntry(fileEntry);
                 }
-                manifest.getTasks().add(entry);
-            } catch(IOException e) {
-                log.log(Level.SEVERE, String.format("Error processing file %s:", fileEntry.file.getName()), e);
-                failed.set(true);
+            });
+        }
+
+        List<Future<FileInstall>> futures;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threadCount));
+        try {
+            futures = executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing modpack files");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Add the entries in the order of their paths, not in the order that they finished
+        boolean failed = false;
+        List<ManifestEntry> entries = new ArrayList<ManifestEntry>(futures.size());
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                entries.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                log.log(Level.SEVERE, String.format("Error processing file %s:", fileEntries.get(i).file.getName()), e.getCause());
+                failed = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while processing modpack files");
             }
-        });
+        }
         fileEntries.clear();
 
-        if (failed.get())
-        {
+        if (failed) {
             throw new IOException("Failed to process some modpack files. Please check the log.");
         }
+
+        manifest.getTasks().addAll(entries);
+    }
+
+    private FileInstall createEntry(FileEntry fileEntry) throws IOException {
+        FileInstall entry = new FileInstall();
+        String to = fileEntry.to;
+        String hash = previousCache != null ? previousCache.getHash(to, fileEntry.file) : null;
+        if (hash == null) {
+            hash = Files.hash(fileEntry.file, hf).toString();
+        }
+        if (buildCache != null) {
+            buildCache.put(to, fileEntry.file, hash);
+        }
+
+        // url.txt override file
+        File urlFile = new File(fileEntry.file.getAbsoluteFile().getParentFile(),
+                fileEntry.file.getName() + FileUrlScanner.URL_FILE_SUFFIX);
+        String location;
+        boolean copy = true;
+        if (urlFile.exists() && FileUrlScanner.isEnabled()) {
+            FileUrlRedirect redirect = FileUrlRedirect.fromFile(urlFile);
+
+            location = redirect.getUrl().toString();
+            copy = false;
+        } else {
+            location = hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/" + hash;
+        }
+
+        File destPath = new File(destDir, location);
+        entry.setHash(hash);
+        entry.setLocation(location);
+        entry.setTo(to);
+        entry.setSize(fileEntry.file.length());
+        applicator.apply(entry);
+        destPath.getParentFile().mkdirs();
+        //ClientFileCollector.log.info(String.format("Adding %s from %s...", fileEntry.relPath, fileEntry.file.getAbsolutePath()));
+        // Objects are named by their hash, so an existing one has the same contents
+        if (copy && !(destPath.exists() && destPath.length() == fileEntry.file.length())) {
+            Files.copy(fileEntry.file, destPath);
+        }
+        return entry;
     }
 
     public static DirectoryBehavior getDirectoryBehavior(@NonNull String name) {
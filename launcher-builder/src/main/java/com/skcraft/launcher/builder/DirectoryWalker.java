@@ -10,11 +10,25 @@ import lombok.NonNull;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Abstract class to recursively walk a directory, keep track of a relative
  * path (which may be modified by dropping certain directory entries),
  * and call {@link #onFile(java.io.File, String)} with each file.
+ *
+ * <p>Several walkers can share one walk of the same tree with
+ * {@link #walk(File, int, DirectoryWalker...)}, in which case each walker
+ * keeps its own relative path and decides for itself which directories
+ * to skip.</p>
  */
 public abstract class DirectoryWalker {
 
@@ -36,44 +50,50 @@ public abstract class DirectoryWalker {
     /**
      * Walk the given directory.
      *
+     * <p>The entries of each directory are visited in order of their names,
+     * so that walking the same tree always calls back in the same order.</p>
+     *
      * @param dir the directory
      * @throws IOException thrown on I/O error
      */
     public final void walk(@NonNull File dir) throws IOException {
-        walk(dir, "");
-        onWalkComplete();
+        walk(dir, 1, this);
     }
 
     /**
-     * Recursively walk the given directory and keep track of the relative path.
+     * Walk the given directory once for all of the given walkers, calling
+     * {@link #onWalkComplete()} on each of them in order afterwards.
+     *
+     * <p>With more than one thread, directories are listed in parallel and
+     * {@link #onFile(File, String)} may be called from several threads
+     * at once, in no particular order.</p>
      *
      * @param dir the directory
-     * @param basePath the base path
-     * @throws IOException
+     * @param threadCount the number of threads to use
+     * @param walkers the walkers
+     * @throws IOException thrown on I/O error
      */
-    private void walk(@NonNull File dir, @NonNull String basePath) throws IOException {
+    public static void walk(@NonNull File dir, int threadCount, @NonNull DirectoryWalker... walkers) throws IOException {
         if (!dir.isDirectory()) {
             throw new IllegalArgumentException(dir.getAbsolutePath() + " is not a directory");
         }
 
-        File[] files = dir.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.isDirectory()) {
-                    String newPath = basePath;
+        String[] basePaths = new String[walkers.length];
+        for (int i = 0; i < basePaths.length; i++) {
+            basePaths[i] = "";
+        }
 
-                    switch (getBehavior(file.getName())) {
-                        case CONTINUE:
-                            newPath += file.getName() + "/";
-                        case IGNORE:
-                            walk(file, newPath);
-                            break;
-                        case SKIP: break;
-                    }
-                } else {
-                    onFile(file, basePath + file.getName());
-                }
-            }
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threadCount));
+        try {
+            pool.invoke(new DirectoryTask(walkers, dir.toPath(), basePaths, threadCount > 1));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        for (DirectoryWalker walker : walkers) {
+            walker.onWalkComplete();
         }
     }
 
@@ -97,4 +117,132 @@ public abstract class DirectoryWalker {
     protected abstract void onFile(File file, String relPath) throws IOException;
 
     protected void onWalkComplete() throws IOException {}
+
+    /**
+     * Visits one directory and then its subdirectories, which are forked off
+     * as their own tasks if walking in parallel.
+     */
+    private static class DirectoryTask extends RecursiveAction {
+
+        private final DirectoryWalker[] walkers;
+        private final Path dir;
+        private final String[] basePaths;
+        private final boolean parallel;
+
+        private DirectoryTask(DirectoryWalker[] walkers, Path dir, String[] basePaths, boolean parallel) {
+            this.walkers = walkers;
+            this.dir = dir;
+            this.basePaths = basePaths;
+            this.parallel = parallel;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                List<DirectoryTask> forked = new ArrayList<DirectoryTask>();
+
+                for (DirectoryEntry entry : list()) {
+                    String name = entry.path.getFileName().toString();
+
+                    if (entry.directory) {
+                        DirectoryTask task = createTask(entry.path, name);
+                        if (task == null) {
+                            continue;
+                        }
+                        if (parallel) {
+                            task.fork();
+                            forked.add(task);
+                        } else {
+                            task.compute();
+                        }
+                    } else {
+                        File file = entry.path.toFile();
+                        for (int i = 0; i < walkers.length; i++) {
+                            if (basePaths[i] != null) {
+                                walkers[i].onFile(file, basePaths[i] + name);
+                            }
+                        }
+                    }
+                }
+
+                for (DirectoryTask task : forked) {
+                    task.join();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Create the task for a subdirectory.
+         *
+         * @return the task, or null if every walker skips the directory
+         */
+        private DirectoryTask createTask(Path path, String name) {
+            String[] childPaths = new String[walkers.length];
+            boolean visit = false;
+
+            for (int i = 0; i < walkers.length; i++) {
+                if (basePaths[i] != null) {
+                    switch (walkers[i].getBehavior(name)) {
+                        case CONTINUE:
+                            childPaths[i] = basePaths[i] + name + "/";
+                            break;
+                        case IGNORE:
+                            childPaths[i] = basePaths[i];
+                            break;
+                        case SKIP:
+                            break;
+                    }
+                    visit |= childPaths[i] != null;
+                }
+            }
+
+            return visit ? new DirectoryTask(walkers, path, childPaths, parallel) : null;
+        }
+
+        /**
+         * List the directory, with the attributes that were read along with
+         * the listing, sorted by name.
+         */
+        private List<DirectoryEntry> list() throws IOException {
+            final List<DirectoryEntry> entries = new ArrayList<DirectoryEntry>();
+
+            Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    entries.add(new DirectoryEntry(file, attrs.isDirectory()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    if (!file.equals(dir)) {
+                        entries.add(new DirectoryEntry(file, false));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            Collections.sort(entries);
+            return entries;
+        }
+
+    }
+
+    private static class DirectoryEntry implements Comparable<DirectoryEntry> {
+        private final Path path;
+        private final boolean directory;
+
+        private DirectoryEntry(Path path, boolean directory) {
+            this.path = path;
+            this.directory = directory;
+        }
+
+        @Override
+        public int compareTo(DirectoryEntry o) {
+            return path.compareTo(o.path);
+        }
+    }
+
 }
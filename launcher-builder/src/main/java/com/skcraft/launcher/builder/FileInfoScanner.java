@@ -8,14 +8,11 @@ package com.skcraft.launcher.builder;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.skcraft.launcher.model.modpack.Feature;
-import lombok.Getter;
 import lombok.extern.java.Log;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.EnumSet;
-import java.util.List;
+import java.util.*;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Strings.emptyToNull;
@@ -30,11 +27,33 @@ public class FileInfoScanner extends DirectoryWalker {
     public static final String FILE_SUFFIX = ".info.json";
 
     private final ObjectMapper mapper;
-    @Getter
-    private final List<FeaturePattern> patterns = new ArrayList<FeaturePattern>();
+    private final PropertiesApplicator applicator;
+    private final SortedMap<File, FeaturePattern> patterns = new TreeMap<File, FeaturePattern>();
 
     public FileInfoScanner(ObjectMapper mapper) {
+        this(mapper, null);
+    }
+
+    /**
+     * Create a new scanner that registers the patterns that it finds with
+     * the given applicator once the walk is complete.
+     *
+     * @param mapper the mapper
+     * @param applicator the applicator, or null
+     */
+    public FileInfoScanner(ObjectMapper mapper, PropertiesApplicator applicator) {
         this.mapper = mapper;
+        this.applicator = applicator;
+    }
+
+    /**
+     * Get the patterns that were found, in order of the path of the
+     * .info.json file that they were found in.
+     *
+     * @return the patterns
+     */
+    public synchronized List<FeaturePattern> getPatterns() {
+        return new ArrayList<FeaturePattern>(patterns.values());
     }
 
     @Override
@@ -64,7 +83,9 @@ public class FileInfoScanner extends DirectoryWalker {
                 FeaturePattern fp = new FeaturePattern();
                 fp.setFeature(feature);
                 fp.setFilePatterns(patternList);
-                getPatterns().add(fp);
+                synchronized (this) {
+                    this.patterns.put(file, fp);
+                }
 
                 FileInfoScanner.log.info("Found .info.json file at " + file.getAbsolutePath() +
                         ", with pattern " + fnPattern + ", and component " + feature);
@@ -72,4 +93,13 @@ public class FileInfoScanner extends DirectoryWalker {
         }
     }
 
+    @Override
+    protected void onWalkComplete() throws IOException {
+        if (applicator != null) {
+            for (FeaturePattern pattern : getPatterns()) {
+                applicator.register(pattern);
+            }
+        }
+    }
+
 }
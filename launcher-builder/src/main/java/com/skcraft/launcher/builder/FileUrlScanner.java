@@ -1,17 +1,36 @@
 package com.skcraft.launcher.builder;
 
+import com.google.common.base.Throwables;
 import com.google.common.io.Files;
 import com.skcraft.launcher.util.FileUtils;
 import com.skcraft.launcher.util.HttpRequest;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.java.Log;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
 
+/**
+ * Finds <code>.url.txt</code> files and downloads their targets if they are
+ * missing or out of date.
+ *
+ * <p>The files are only collected during the walk, so that the walk is not
+ * held up by downloads, and are downloaded on a pool of
+ * {@link #getThreadCount()} threads once it is complete.</p>
+ */
 @Log
 public class FileUrlScanner extends DirectoryWalker {
 	public static final String URL_FILE_SUFFIX = ".url.txt";
 
+	private final List<File> urlFiles = new ArrayList<File>();
+	@Getter @Setter
+	private int threadCount = 1;
+
 	public static boolean isEnabled() {
 		return !System.getProperty("com.skcraft.builder.ignoreURLOverrides", "false")
 				.equalsIgnoreCase("true");
@@ -23,6 +42,52 @@ public class FileUrlScanner extends DirectoryWalker {
 
 		log.info("Found URL file " + file.getName());
 
+		synchronized (urlFiles) {
+			urlFiles.add(file);
+		}
+	}
+
+	@Override
+	protected void onWalkComplete() throws IOException {
+		if (urlFiles.isEmpty()) return;
+
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (final File file : urlFiles) {
+			tasks.add(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					update(file);
+					return null;
+				}
+			});
+		}
+		urlFiles.clear();
+
+		List<Future<Object>> futures;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threadCount, tasks.size())));
+		try {
+			futures = executor.invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while downloading URL files");
+		} finally {
+			executor.shutdownNow();
+		}
+
+		for (Future<Object> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				Throwables.propagateIfPossible(e.getCause(), IOException.class);
+				throw new IOException("Failed to download URL files", e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while downloading URL files");
+			}
+		}
+	}
+
+	private void update(File file) throws IOException {
 		File targetFile = new File(file.getAbsoluteFile().getParentFile(),
 				file.getName().replace(URL_FILE_SUFFIX, ""));
 		FileUrlRedirect info = FileUrlRedirect.fromFile(file);
@@ -7,6 +7,7 @@
 
 package com.skcraft.launcher.builder;
 
+import java.util.Arrays;
 import java.util.EnumSet;
 
 /*
@@ -30,6 +31,7 @@ public class FnMatch {
     }
     private static final int RANGE_ERROR = -1;
     private static final int RANGE_NOMATCH = 0;
+    private static final int RANGE_MALFORMED = -2;
 
     public static boolean fnmatch(String pattern, String string, EnumSet<Flag> flags) {
         return match(pattern, 0, string, 0, flags);
@@ -47,6 +49,18 @@ public class FnMatch {
         return fnmatch(pattern, string, 0);
     }
 
+    /**
+     * Compile a pattern so that it can be matched against many strings
+     * without being parsed again each time.
+     *
+     * @param pattern the pattern
+     * @param flags the flags
+     * @return the compiled pattern
+     */
+    public static Pattern compile(String pattern, EnumSet<Flag> flags) {
+        return new Pattern(pattern, flags);
+    }
+
     private static boolean match(String pattern, int patternPos,
             String string, int stringPos, EnumSet<Flag> flags) {
         char c;
@@ -243,4 +257,350 @@ public class FnMatch {
 
         return ok == negate ? RANGE_NOMATCH : patternPos;
     }
-}
\ No newline at end of file
+
+    /**
+     * A pattern that has been parsed into a list of tokens, which matches the
+     * same strings as {@link #fnmatch(String, String, EnumSet)}.
+     *
+     * <p>Instead of recursing at each <code>*</code>, only the position of
+     * the last <code>*</code> is remembered and retried on a mismatch, so
+     * matching does not backtrack through earlier stars.</p>
+     *
+     * <p>{@link #fnmatch(String, String, EnumSet)} throws
+     * {@link StringIndexOutOfBoundsException} for some strings if the pattern
+     * has a bracket expression that is cut off after a character or a
+     * backslash, or if {@link Flag#LEADING_DIR} is used. Such patterns are
+     * matched with <code>fnmatch</code> itself, so that they fail in the
+     * same way, and they have no literal prefix or suffix.</p>
+     */
+    public static final class Pattern {
+
+        private static final int LITERAL = 0;
+        private static final int ANY = 1;
+        private static final int RANGE = 2;
+        private static final int STAR = 3;
+        private static final int STAR_END = 4;
+        private static final int STAR_SLASH = 5;
+
+        private final String pattern;
+        private final EnumSet<Flag> flags;
+        private final boolean fallback;
+        private final boolean pathname;
+        private final boolean period;
+        private final boolean leadingDir;
+        private final boolean casefold;
+        private final int[] types;
+        private final char[] chars;
+        private final CharRange[] ranges;
+
+        private Pattern(String pattern, EnumSet<Flag> flags) {
+            this.pattern = pattern;
+            this.flags = EnumSet.copyOf(flags);
+            this.pathname = flags.contains(Flag.PATHNAME);
+            this.period = flags.contains(Flag.PERIOD);
+            this.leadingDir = flags.contains(Flag.LEADING_DIR);
+            this.casefold = flags.contains(Flag.CASEFOLD);
+            boolean noEscape = flags.contains(Flag.NOESCAPE);
+
+            int length = pattern.length();
+            int[] types = new int[length];
+            char[] chars = new char[length];
+            CharRange[] ranges = new CharRange[length];
+            int count = 0;
+            int patternPos = 0;
+            boolean fallback = leadingDir;
+
+            while (patternPos < length) {
+                char c = pattern.charAt(patternPos++);
+                switch (c) {
+                    case '?':
+                        types[count++] = ANY;
+                        continue;
+                    case '*':
+                        while (patternPos < length && pattern.charAt(patternPos) == '*') {
+                            patternPos++;
+                        }
+                        if (patternPos == length) {
+                            types[count++] = STAR_END;
+                        } else if (pathname && pattern.charAt(patternPos) == '/') {
+                            types[count++] = STAR_SLASH;
+                        } else {
+                            types[count++] = STAR;
+                        }
+                        continue;
+                    case '[':
+                        CharRange range = new CharRange();
+                        int end = range.parse(pattern, patternPos, noEscape, pathname, casefold);
+                        if (end == RANGE_MALFORMED) {
+                            fallback = true;
+                        } else if (end != RANGE_ERROR) {
+                            types[count] = RANGE;
+                            ranges[count++] = range;
+                            patternPos = end;
+                            continue;
+                        }
+                        break; // Not a good range, treat as normal text
+                    case '\\':
+                        if (!noEscape && patternPos < length) {
+                            c = pattern.charAt(patternPos++);
+                        }
+                        break;
+                }
+
+                types[count] = LITERAL;
+                chars[count++] = c;
+            }
+
+            this.fallback = fallback;
+            this.types = Arrays.copyOf(types, count);
+            this.chars = Arrays.copyOf(chars, count);
+            this.ranges = Arrays.copyOf(ranges, count);
+        }
+
+        /**
+         * Check whether the pattern matches the whole string.
+         *
+         * @param string the string
+         * @return true if matched
+         */
+        public boolean matches(String string) {
+            if (fallback) {
+                return fnmatch(pattern, string, flags);
+            }
+
+            int length = string.length();
+            int tokenCount = types.length;
+            int t = 0;
+            int i = 0;
+            int starToken = -1;
+            int starPos = -1;
+            boolean period = this.period;
+
+            while (true) {
+                boolean ok;
+
+                if (t == tokenCount) {
+                    ok = i == length || (leadingDir && string.charAt(i) == '/');
+                    if (ok) {
+                        return true;
+                    }
+                } else {
+                    switch (types[t]) {
+                        case LITERAL:
+                            ok = i < length && charEquals(chars[t], string.charAt(i));
+                            break;
+                        case ANY:
+                            ok = i < length && !(pathname && string.charAt(i) == '/')
+                                    && !hasLeadingPeriod(string, i, period);
+                            break;
+                        case RANGE:
+                            ok = i < length && !(pathname && string.charAt(i) == '/')
+                                    && !hasLeadingPeriod(string, i, period)
+                                    && ranges[t].contains(string.charAt(i));
+                            break;
+                        case STAR_END:
+                            if (hasLeadingPeriod(string, i, period)) {
+                                ok = false;
+                            } else if (!pathname || leadingDir || string.indexOf('/', i) == -1) {
+                                return true;
+                            } else {
+                                ok = false;
+                            }
+                            break;
+                        case STAR_SLASH:
+                            if (!hasLeadingPeriod(string, i, period)) {
+                                int next = string.indexOf('/', i);
+                                if (next != -1) {
+                                    i = next;
+                                    t++;
+                                    continue;
+                                }
+                            }
+                            ok = false;
+                            break;
+                        default: // STAR
+                            ok = i < length && !hasLeadingPeriod(string, i, period);
+                            if (ok) {
+                                period = false;
+                                starToken = ++t;
+                                starPos = i;
+                                continue;
+                            }
+                            break;
+                    }
+
+                    if (ok) {
+                        i++;
+                        t++;
+                        continue;
+                    }
+                }
+
+                // Let the last star take one more character and try again
+                if (starToken == -1 || (pathname && string.charAt(starPos) == '/') || ++starPos >= length) {
+                    return false;
+                }
+                t = starToken;
+                i = starPos;
+            }
+        }
+
+        /**
+         * Get the text that every matching string has to start with.
+         *
+         * @return the prefix, in lower case if the pattern ignores case
+         */
+        public String getLiteralPrefix() {
+            if (fallback) {
+                return "";
+            }
+            StringBuilder builder = new StringBuilder();
+            for (int t = 0; t < types.length && types[t] == LITERAL; t++) {
+                builder.append(casefold ? Character.toLowerCase(chars[t]) : chars[t]);
+            }
+            return builder.toString();
+        }
+
+        /**
+         * Get the text that every matching string has to end with.
+         *
+         * @return the suffix, in lower case if the pattern ignores case
+         */
+        public String getLiteralSuffix() {
+            if (fallback) {
+                return "";
+            }
+            StringBuilder builder = new StringBuilder();
+            for (int t = types.length - 1; t >= 0 && types[t] == LITERAL; t--) {
+                builder.append(casefold ? Character.toLowerCase(chars[t]) : chars[t]);
+            }
+            return builder.reverse().toString();
+        }
+
+        public boolean isCasefold() {
+            return casefold;
+        }
+
+        private boolean charEquals(char c, char test) {
+            return c == test || (casefold && Character.toLowerCase(c) == Character.toLowerCase(test));
+        }
+
+        private boolean hasLeadingPeriod(String string, int stringPos, boolean period) {
+            return period && stringPos < string.length() && string.charAt(stringPos) == '.'
+                    && (stringPos == 0 || (pathname && string.charAt(stringPos - 1) == '/'));
+        }
+
+        @Override
+        public String toString() {
+            return pattern;
+        }
+
+    }
+
+    /**
+     * A parsed bracket expression.
+     */
+    private static final class CharRange {
+
+        private boolean negate;
+        private boolean casefold;
+        private boolean noMatch;
+        private StringBuilder bounds = new StringBuilder();
+
+        /**
+         * Parse the expression in the same way as {@link #matchRange}.
+         *
+         * @return the position after the expression, {@link #RANGE_ERROR}, or
+         *         {@link #RANGE_MALFORMED} where <code>matchRange</code> would throw
+         */
+        private int parse(String pattern, int patternPos, boolean noEscape, boolean pathname, boolean casefold) {
+            char c, c2;
+            int length = pattern.length();
+            this.casefold = casefold;
+
+            if (patternPos >= length) {
+                return RANGE_ERROR;
+            }
+
+            c = pattern.charAt(patternPos);
+            negate = c == '!' || c == '^';
+            if (negate) {
+                ++patternPos;
+            }
+
+            while (true) {
+                if (patternPos >= length) {
+                    return RANGE_ERROR;
+                }
+
+                c = pattern.charAt(patternPos++);
+                if (c == ']') {
+                    break;
+                }
+
+                if (c == '\\' && !noEscape) {
+                    if (patternPos >= length) {
+                        return RANGE_MALFORMED;
+                    }
+                    c = pattern.charAt(patternPos++);
+                }
+                if (c == '/' && pathname) {
+                    noMatch = true;
+                    return skipRange(pattern, patternPos);
+                }
+                if (casefold) {
+                    c = Character.toLowerCase(c);
+                }
+                if (patternPos >= length) {
+                    return RANGE_MALFORMED;
+                }
+                if (pattern.charAt(patternPos) == '-' &&
+                        patternPos + 1 < length &&
+                        (c2 = pattern.charAt(patternPos + 1)) != ']') {
+                    patternPos += 2;
+                    if (c2 == '\\' && !noEscape) {
+                        if (patternPos >= length) {
+                            return RANGE_ERROR;
+                        }
+                        c = pattern.charAt(patternPos++);
+                    }
+                    if (casefold) {
+                        c2 = Character.toLowerCase(c2);
+                    }
+                    bounds.append(c).append(c2);
+                } else {
+                    bounds.append(c).append(c);
+                }
+            }
+
+            return patternPos;
+        }
+
+        /**
+         * {@link #matchRange} gives up as soon as it sees a slash, so the rest
+         * of the expression is skipped without checking it.
+         */
+        private int skipRange(String pattern, int patternPos) {
+            int end = pattern.indexOf(']', patternPos);
+            return end != -1 ? end + 1 : pattern.length();
+        }
+
+        private boolean contains(char test) {
+            if (noMatch) {
+                return false;
+            }
+            if (casefold) {
+                test = Character.toLowerCase(test);
+            }
+            boolean ok = false;
+            for (int i = 0; i < bounds.length(); i += 2) {
+                if (bounds.charAt(i) <= test && test <= bounds.charAt(i + 1)) {
+                    ok = true;
+                    break;
+                }
+            }
+            return ok != negate;
+        }
+
+    }
+}
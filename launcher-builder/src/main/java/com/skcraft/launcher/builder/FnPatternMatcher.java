@@ -0,0 +1,151 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.builder;
+
+import lombok.NonNull;
+
+import java.util.*;
+
+/**
+ * Matches a path against many {@link FnPatternList}s at once.
+ *
+ * <p>Every pattern is compiled once, and indexed by the literal text that a
+ * matching path has to start or end with, so that only the patterns that
+ * share a prefix or suffix with a path are tried against it.</p>
+ */
+public class FnPatternMatcher {
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final Node prefixes = new Node();
+    private final Node suffixes = new Node();
+    private final List<Entry> unindexed = new ArrayList<Entry>();
+    private int groupCount;
+
+    /**
+     * Add a list of patterns.
+     *
+     * @param list the list, or null for a list that never matches
+     * @return the index of the list, for use with the result of {@link #match(String)}
+     */
+    public int add(FnPatternList list) {
+        int group = groupCount++;
+
+        if (list != null && list.getInclude() != null) {
+            for (String pattern : list.getInclude()) {
+                add(new Entry(FnMatch.compile(pattern, list.getFlags()), group, false));
+            }
+            if (list.getExclude() != null) {
+                for (String pattern : list.getExclude()) {
+                    add(new Entry(FnMatch.compile(pattern, list.getFlags()), group, true));
+                }
+            }
+        }
+
+        return group;
+    }
+
+    private void add(Entry entry) {
+        entries.add(entry);
+
+        String prefix = entry.pattern.getLiteralPrefix();
+        String suffix = entry.pattern.getLiteralSuffix();
+
+        if (prefix.isEmpty() && suffix.isEmpty()) {
+            unindexed.add(entry);
+        } else if (prefix.length() >= suffix.length()) {
+            Node node = prefixes;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.getOrCreate(prefix.charAt(i));
+            }
+            node.entries.add(entry);
+        } else {
+            Node node = suffixes;
+            for (int i = suffix.length() - 1; i >= 0; i--) {
+                node = node.getOrCreate(suffix.charAt(i));
+            }
+            node.entries.add(entry);
+        }
+    }
+
+    /**
+     * Match a path against every list.
+     *
+     * @param path the path
+     * @return the indices of the lists that matched
+     */
+    public BitSet match(@NonNull String path) {
+        BitSet included = new BitSet(groupCount);
+        BitSet excluded = new BitSet(groupCount);
+
+        Node node = prefixes;
+        for (int i = 0; i < path.length() && node != null; i++) {
+            node = node.get(path.charAt(i));
+            if (node != null) {
+                test(node.entries, path, included, excluded);
+            }
+        }
+
+        node = suffixes;
+        for (int i = path.length() - 1; i >= 0 && node != null; i--) {
+            node = node.get(path.charAt(i));
+            if (node != null) {
+                test(node.entries, path, included, excluded);
+            }
+        }
+
+        test(unindexed, path, included, excluded);
+
+        included.andNot(excluded);
+        return included;
+    }
+
+    private static void test(List<Entry> entries, String path, BitSet included, BitSet excluded) {
+        for (Entry entry : entries) {
+            BitSet target = entry.exclude ? excluded : included;
+            if (!target.get(entry.group) && entry.pattern.matches(path)) {
+                target.set(entry.group);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final FnMatch.Pattern pattern;
+        private final int group;
+        private final boolean exclude;
+
+        private Entry(FnMatch.Pattern pattern, int group, boolean exclude) {
+            this.pattern = pattern;
+            this.group = group;
+            this.exclude = exclude;
+        }
+    }
+
+    /**
+     * A node of a trie over the lower case characters of prefixes or suffixes.
+     * Patterns that don't ignore case are stored the same way and may be
+     * tried against paths that differ from them in case.
+     */
+    private static class Node {
+        private final Map<Character, Node> children = new HashMap<Character, Node>();
+        private final List<Entry> entries = new ArrayList<Entry>(1);
+
+        private Node get(char c) {
+            return children.get(Character.toLowerCase(c));
+        }
+
+        private Node getOrCreate(char c) {
+            Character key = Character.toLowerCase(c);
+            Node node = children.get(key);
+            if (node == null) {
+                node = new Node();
+                children.put(key, node);
+            }
+            return node;
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.builder;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.Data;
+import lombok.NonNull;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers where libraries were found in previous builds: the Maven
+ * repository that served each group ID, so that it can be tried first for
+ * other artifacts of the group, and the URLs that returned 404, so that
+ * they are not requested again for a while.
+ */
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class LibraryCache {
+
+    private static final long MISSING_EXPIRY = TimeUnit.DAYS.toMillis(7);
+
+    private Map<String, String> repositories = new HashMap<String, String>();
+    private Map<String, Long> missing = new HashMap<String, Long>();
+
+    /**
+     * Get the repository that last served an artifact of the given group.
+     *
+     * @param group the group ID
+     * @return the base URL of the repository, or null
+     */
+    public synchronized String getRepository(@NonNull String group) {
+        return repositories.get(group);
+    }
+
+    /**
+     * Record that the repository served an artifact of the given group.
+     *
+     * @param group the group ID
+     * @param baseUrl the base URL of the repository
+     */
+    public synchronized void putRepository(@NonNull String group, @NonNull String baseUrl) {
+        repositories.put(group, baseUrl);
+    }
+
+    /**
+     * Check whether the URL returned 404 recently.
+     *
+     * @param url the URL
+     * @return true if the URL is known to be missing
+     */
+    public synchronized boolean isMissing(@NonNull String url) {
+        Long time = missing.get(url);
+        return time != null && System.currentTimeMillis() - time < MISSING_EXPIRY;
+    }
+
+    /**
+     * Record that the URL returned 404.
+     *
+     * @param url the URL
+     */
+    public synchronized void putMissing(@NonNull String url) {
+        missing.put(url, System.currentTimeMillis());
+    }
+
+    /**
+     * Forget the URLs that returned 404 too long ago, as the artifacts may
+     * have been published since.
+     */
+    public synchronized void removeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Long> it = missing.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next() >= MISSING_EXPIRY) {
+                it.remove();
+            }
+        }
+    }
+
+}
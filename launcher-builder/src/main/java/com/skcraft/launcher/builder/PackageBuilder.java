@@ -12,6 +12,7 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
@@ -26,6 +27,7 @@ import com.skcraft.launcher.model.minecraft.ReleaseList;
 import com.skcraft.launcher.model.minecraft.Version;
 import com.skcraft.launcher.model.minecraft.VersionManifest;
 import com.skcraft.launcher.model.modpack.Manifest;
+import com.skcraft.launcher.persistence.Persistence;
 import com.skcraft.launcher.util.HttpRequest;
 import com.skcraft.launcher.util.SimpleLogFormatter;
 import lombok.Getter;
@@ -35,10 +37,8 @@ import lombok.extern.java.Log;
 
 import java.io.*;
 import java.net.URL;
-import java.util.Collections;
-import java.util.LinkedHashSet;
-import java.util.List;
-import java.util.Properties;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.jar.JarFile;
 import java.util.logging.Level;
 import java.util.zip.ZipEntry;
@@ -62,6 +62,16 @@ public class PackageBuilder {
 
     @Getter @Setter
     private File baseDir;
+    @Getter @Setter
+    private File buildCachePath;
+    @Getter @Setter
+    private boolean incremental;
+    @Getter @Setter
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    @Getter @Setter
+    private int downloadThreadCount = 6;
+    @Getter @Setter
+    private File libraryCachePath;
 
     private List<Library> loaderLibraries = Lists.newArrayList();
     private List<Library> installerLibraries = Lists.newArrayList();
@@ -101,25 +111,62 @@ public class PackageBuilder {
         this.prettyPrint = prettyPrint;
     }
 
-    public void scan(File dir) throws IOException {
-        logSection("Scanning for .info.json files...");
+    public void addFiles(File dir, File destDir) throws IOException {
+        logSection("Scanning and adding files to modpack...");
 
-        FileInfoScanner infoScanner = new FileInfoScanner(mapper);
-        infoScanner.walk(dir);
-        for (FeaturePattern pattern : infoScanner.getPatterns()) {
-            applicator.register(pattern);
+        FileInfoScanner infoScanner = new FileInfoScanner(mapper, applicator);
+        FileUrlScanner urlScanner = new FileUrlScanner();
+        urlScanner.setThreadCount(downloadThreadCount);
+        ClientFileCollector collector = new ClientFileCollector(this.manifest, applicator, destDir);
+        collector.setThreadCount(threadCount);
+        BuildCache previousCache = null;
+        BuildCache buildCache = null;
+
+        if (buildCachePath != null) {
+            buildCache = new BuildCache();
+            collector.setBuildCache(buildCache);
+
+            if (incremental) {
+                previousCache = Persistence.read(buildCachePath, BuildCache.class, true);
+                if (previousCache != null) {
+                    collector.setPreviousCache(previousCache);
+                } else {
+                    log.info("No build cache found at " + buildCachePath.getAbsolutePath() + "; hashing every file");
+                }
+            }
         }
 
-        logSection("Scanning for .url.txt files...");
-        FileUrlScanner urlScanner = new FileUrlScanner();
-        urlScanner.walk(dir);
+        // The .info.json patterns are registered and the .url.txt targets downloaded
+        // before the collector uses them, as it is last
+        DirectoryWalker.walk(dir, threadCount, infoScanner, urlScanner, collector);
+
+        if (buildCache != null) {
+            if (previousCache != null) {
+                logChanges(buildCache.getChanges(previousCache));
+            }
+
+            Persistence.write(buildCachePath, buildCache);
+        }
     }
 
-    public void addFiles(File dir, File destDir) throws IOException {
-        logSection("Adding files to modpack...");
+    private static void logChanges(BuildCache.Changes changes) {
+        if (changes.isEmpty()) {
+            log.info("No files have changed since the last build");
+            return;
+        }
 
-        ClientFileCollector collector = new ClientFileCollector(this.manifest, applicator, destDir);
-        collector.walk(dir);
+        for (String path : changes.getAdded()) {
+            log.info("Added: " + path);
+        }
+        for (String path : changes.getChanged()) {
+            log.info("Changed: " + path);
+        }
+        for (String path : changes.getRemoved()) {
+            log.info("Removed: " + path);
+        }
+
+        log.info(changes.getAdded().size() + " added, " + changes.getChanged().size() + " changed, " +
+                changes.getRemoved().size() + " removed since the last build");
     }
 
     public void addLoaders(File dir, File librariesDir) {
@@ -197,56 +244,112 @@ public class PackageBuilder {
     public void downloadLibraries(File librariesDir) throws IOException, InterruptedException {
         logSection("Downloading libraries...");
 
+        // Collect the missing artifacts first, as several libraries may share one
+        Map<String, Library> libraries = new LinkedHashMap<String, Library>();
+        Map<String, Library.Artifact> artifacts = new LinkedHashMap<String, Library.Artifact>();
         for (Library library : Iterables.concat(loaderLibraries, installerLibraries)) {
             library.ensureDownloadsExist();
 
             for (Library.Artifact artifact : library.getDownloads().getAllArtifacts()) {
-                File outputPath = new File(librariesDir, artifact.getPath());
+                if (!artifacts.containsKey(artifact.getPath()) && !new File(librariesDir, artifact.getPath()).exists()) {
+                    libraries.put(artifact.getPath(), library);
+                    artifacts.put(artifact.getPath(), artifact);
+                }
+            }
+        }
 
-                if (!outputPath.exists()) {
-                    Files.createParentDirs(outputPath);
-                    boolean found = false;
-                    boolean urlEmpty = artifact.getUrl().isEmpty();
+        if (artifacts.isEmpty()) {
+            return;
+        }
 
-                    // If URL doesn't end with a /, it might be the direct file
-                    if (!urlEmpty && !artifact.getUrl().endsWith("/")) {
-                        found = tryDownloadLibrary(library, artifact, artifact.getUrl(), outputPath);
-                    }
+        final LibraryCache cache = readLibraryCache();
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (Map.Entry<String, Library.Artifact> entry : artifacts.entrySet()) {
+            final Library library = libraries.get(entry.getKey());
+            final Library.Artifact artifact = entry.getValue();
+            final File outputPath = new File(librariesDir, artifact.getPath());
+
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    downloadLibrary(library, artifact, outputPath, cache);
+                    return null;
+                }
+            });
+        }
 
-                    // Look inside the loader JARs
-                    if (!found) {
-                        for (URL base : jarMavens) {
-                            found = tryFetchLibrary(library, new URL(base, artifact.getPath()), outputPath);
-                            if (found) break;
-                        }
-                    }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(downloadThreadCount, tasks.size())));
+        List<Future<Object>> futures;
+        try {
+            futures = executor.invokeAll(tasks);
+        } finally {
+            executor.shutdownNow();
+            writeLibraryCache(cache);
+        }
 
-                    // Assume artifact URL is a maven repository URL and try that
-                    if (!found && !urlEmpty) {
-                        URL url = LauncherUtils.concat(url(artifact.getUrl()), artifact.getPath());
-                        found = tryDownloadLibrary(library, artifact, url.toString(), outputPath);
-                    }
+        for (Future<Object> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Throwables.propagateIfPossible(e.getCause(), IOException.class, InterruptedException.class);
+                throw new IOException("Failed to download libraries", e.getCause());
+            }
+        }
+    }
 
-                    // Try each repository if not found yet
-                    if (!found) {
-                        for (String baseUrl : mavenRepos) {
-                            found = tryDownloadLibrary(library, artifact, baseUrl + artifact.getPath(),
-                                    outputPath);
-                            if (found) break;
-                        }
-                    }
+    private void downloadLibrary(Library library, Library.Artifact artifact, File outputPath, LibraryCache cache)
+            throws IOException, InterruptedException {
+        Files.createParentDirs(outputPath);
+        boolean found = false;
+        boolean urlEmpty = artifact.getUrl().isEmpty();
+
+        // If URL doesn't end with a /, it might be the direct file
+        if (!urlEmpty && !artifact.getUrl().endsWith("/")) {
+            found = tryDownloadLibrary(library, artifact, artifact.getUrl(), outputPath, cache);
+        }
+
+        // Look inside the loader JARs
+        if (!found) {
+            for (URL base : jarMavens) {
+                found = tryFetchLibrary(library, new URL(base, artifact.getPath()), outputPath);
+                if (found) break;
+            }
+        }
+
+        // Assume artifact URL is a maven repository URL and try that
+        if (!found && !urlEmpty) {
+            URL url = LauncherUtils.concat(url(artifact.getUrl()), artifact.getPath());
+            found = tryDownloadLibrary(library, artifact, url.toString(), outputPath, cache);
+        }
+
+        // Try each repository if not found yet, starting with the one that last served the group
+        if (!found) {
+            String group = getGroup(library);
+            List<String> repos = new ArrayList<String>(mavenRepos);
+            String lastRepo = group != null ? cache.getRepository(group) : null;
+            if (lastRepo != null && repos.remove(lastRepo)) {
+                repos.add(0, lastRepo);
+            }
 
-                    if (!found) {
-                        log.warning("!! Failed to download the library " + library.getName() +
-                                " -- this means your copy of the libraries will lack this file");
+            for (String baseUrl : repos) {
+                found = tryDownloadLibrary(library, artifact, baseUrl + artifact.getPath(), outputPath, cache);
+                if (found) {
+                    if (group != null) {
+                        cache.putRepository(group, baseUrl);
                     }
+                    break;
                 }
             }
         }
+
+        if (!found) {
+            log.warning("!! Failed to download the library " + library.getName() +
+                    " -- this means your copy of the libraries will lack this file");
+        }
     }
 
-    private boolean tryDownloadLibrary(Library library, Library.Artifact artifact, String baseUrl, File outputPath)
-            throws IOException, InterruptedException {
+    private boolean tryDownloadLibrary(Library library, Library.Artifact artifact, String baseUrl, File outputPath,
+                                       LibraryCache cache) throws IOException, InterruptedException {
         URL url = new URL(baseUrl);
 
         if (url.getPath().isEmpty() || url.getPath().equals("/")) {
@@ -260,15 +363,29 @@ public class PackageBuilder {
             url = new URL(compressor.transformPathname(url.toString()));
         }
 
+        if (cache.isMissing(url.toString())) {
+            log.fine("Skipping " + url + " as it was not found recently");
+            return false;
+        }
+
         File tempFile = File.createTempFile("launcherlib", null);
 
         try {
             log.info("Downloading library " + library.getName() + " from " + url + "...");
-            HttpRequest.get(url).execute().expectResponseCode(200)
+            HttpRequest request = HttpRequest.get(url).execute();
+            if (request.getResponseCode() == 404) {
+                request.close();
+                cache.putMissing(url.toString());
+                log.info("Could not get file from " + url + ": not found");
+                tempFile.delete();
+                return false;
+            }
+            request.expectResponseCode(200)
                     .expectContentType("application/java-archive", "application/octet-stream", "application/zip")
                     .saveContent(tempFile);
         } catch (IOException e) {
             log.info("Could not get file from " + url + ": " + e.getMessage());
+            tempFile.delete();
             return false;
         }
 
@@ -276,6 +393,34 @@ public class PackageBuilder {
         return true;
     }
 
+    private static String getGroup(Library library) {
+        String name = library.getName();
+        int index = name != null ? name.indexOf(':') : -1;
+        return index > 0 ? name.substring(0, index) : null;
+    }
+
+    private LibraryCache readLibraryCache() {
+        LibraryCache cache = null;
+        if (libraryCachePath != null) {
+            cache = Persistence.read(libraryCachePath, LibraryCache.class, true);
+        }
+        if (cache == null) {
+            cache = new LibraryCache();
+        }
+        cache.removeExpired();
+        return cache;
+    }
+
+    private void writeLibraryCache(LibraryCache cache) {
+        if (libraryCachePath != null) {
+            try {
+                Persistence.write(libraryCachePath, cache);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to write " + libraryCachePath.getAbsolutePath(), e);
+            }
+        }
+    }
+
     private boolean tryFetchLibrary(Library library, URL url, File outputPath)
             throws IOException {
         File tempFile = File.createTempFile("launcherlib", null);
@@ -341,15 +486,13 @@ public class PackageBuilder {
             ReleaseList releases = HttpRequest.get(url)
                     .execute()
                     .expectResponseCode(200)
-                    .returnContent()
-                    .asJson(ReleaseList.class);
+                    .returnJson(ReleaseList.class);
 
             Version version = releases.find(manifest.getGameVersion());
             VersionManifest versionManifest = HttpRequest.get(url(version.getUrl()))
                 .execute()
                 .expectResponseCode(200)
-                .returnContent()
-                .asJson(VersionManifest.class);
+                .returnJson(VersionManifest.class);
 
             manifest.setVersionManifest(versionManifest);
         }
@@ -423,6 +566,11 @@ public class PackageBuilder {
         builder.readConfig(options.getConfigPath());
         builder.readVersionManifest(options.getVersionManifestPath());
         builder.setBaseDir(options.getOutputPath());
+        builder.setBuildCachePath(options.getBuildCachePath());
+        builder.setIncremental(options.isIncremental());
+        builder.setThreadCount(options.getThreadCount());
+        builder.setDownloadThreadCount(options.getDownloadThreadCount());
+        builder.setLibraryCachePath(options.getLibraryCachePath());
 
         // From options
         manifest.updateName(options.getName());
@@ -432,7 +580,6 @@ public class PackageBuilder {
         manifest.setLibrariesLocation(options.getLibrariesLocation());
         manifest.setObjectsLocation(options.getObjectsLocation());
 
-        builder.scan(options.getFilesDir());
         builder.addFiles(options.getFilesDir(), options.getObjectsDir());
         builder.addLoaders(options.getLoadersDir(), options.getLibrariesDir());
         builder.downloadLibraries(options.getLibrariesDir());
@@ -8,20 +8,20 @@ package com.skcraft.launcher.builder;
 
 import com.skcraft.launcher.model.modpack.*;
 import lombok.Getter;
-import lombok.Setter;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PropertiesApplicator {
 
+    private static final int USER_FILES_GROUP = 0;
+
     private final Manifest manifest;
-    private final Set<Feature> used = new HashSet<Feature>();
+    private final Set<Feature> used = Collections.newSetFromMap(new ConcurrentHashMap<Feature, Boolean>());
     private final List<FeaturePattern> features = new ArrayList<FeaturePattern>();
-    @Getter @Setter
+    @Getter
     private FnPatternList userFiles;
+    private volatile FnPatternMatcher matcher;
 
     public PropertiesApplicator(Manifest manifest) {
         this.manifest = manifest;
@@ -34,26 +34,25 @@ public class PropertiesApplicator {
     }
 
     private void apply(FileInstall entry) {
-        String path = entry.getTargetPath();
-        entry.setWhen(fromFeature(path));
-        entry.setUserFile(isUserFile(path));
+        BitSet matched = getMatcher().match(entry.getTargetPath());
+        entry.setWhen(fromFeature(matched));
+        entry.setUserFile(matched.get(USER_FILES_GROUP));
     }
 
     public boolean isUserFile(String path) {
-        if (userFiles != null) {
-            return userFiles.matches(path);
-        } else {
-            return false;
-        }
+        return getMatcher().match(path).get(USER_FILES_GROUP);
     }
 
     public Condition fromFeature(String path) {
+        return fromFeature(getMatcher().match(path));
+    }
+
+    private Condition fromFeature(BitSet matched) {
         List<Feature> found = new ArrayList<Feature>();
-        for (FeaturePattern pattern : features) {
-            if (pattern.matches(path)) {
-                used.add(pattern.getFeature());
-                found.add(pattern.getFeature());
-            }
+        for (int i = matched.nextSetBit(USER_FILES_GROUP + 1); i >= 0; i = matched.nextSetBit(i + 1)) {
+            Feature feature = features.get(i - 1).getFeature();
+            used.add(feature);
+            found.add(feature);
         }
 
         if (!found.isEmpty()) {
@@ -63,12 +62,62 @@ public class PropertiesApplicator {
         }
     }
 
-    public void register(FeaturePattern component) {
+    /**
+     * Build the matcher for the patterns registered so far, so that the
+     * entries that are applied afterwards, possibly from several threads,
+     * share it without locking.
+     */
+    public void prepare() {
+        buildMatcher();
+    }
+
+    /**
+     * Get the matcher for the user files and every registered feature, which
+     * are its lists 0 and 1 onwards respectively.
+     *
+     * @return the matcher
+     */
+    private FnPatternMatcher getMatcher() {
+        FnPatternMatcher matcher = this.matcher;
+        return matcher != null ? matcher : buildMatcher();
+    }
+
+    private synchronized FnPatternMatcher buildMatcher() {
+        if (matcher == null) {
+            FnPatternMatcher matcher = new FnPatternMatcher();
+            matcher.add(userFiles);
+            for (FeaturePattern pattern : features) {
+                matcher.add(pattern.getFilePatterns());
+            }
+            this.matcher = matcher;
+        }
+        return matcher;
+    }
+
+    public synchronized void setUserFiles(FnPatternList userFiles) {
+        this.userFiles = userFiles;
+        matcher = null;
+    }
+
+    public synchronized void register(FeaturePattern component) {
         features.add(component);
+        matcher = null;
     }
 
+    /**
+     * Get the features that matched at least one path, in the order that
+     * they were registered.
+     *
+     * @return the features
+     */
     public List<Feature> getFeaturesInUse() {
-        return new ArrayList<Feature>(used);
+        Set<Feature> inUse = new LinkedHashSet<Feature>();
+        for (FeaturePattern pattern : features) {
+            if (used.contains(pattern.getFeature())) {
+                inUse.add(pattern.getFeature());
+            }
+        }
+        return new ArrayList<Feature>(inUse);
     }
 
 }
@@ -52,8 +52,7 @@ public class FabricLoaderProcessor implements ILoaderProcessor {
 			VersionManifest fabricManifest = HttpRequest.get(metaUrl)
 					.execute()
 					.expectResponseCode(200)
-					.returnContent()
-					.asJson(VersionManifest.class);
+					.returnJson(VersionManifest.class);
 
 			for (Library library : fabricManifest.getLibraries()) {
 				// To quote a famous comment: "And here we come upon a sad state of affairs."
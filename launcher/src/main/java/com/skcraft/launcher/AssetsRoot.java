@@ -6,21 +6,27 @@
 
 package com.skcraft.launcher;
 
+import com.google.common.base.Charsets;
 import com.skcraft.concurrency.ProgressObservable;
 import com.skcraft.launcher.model.minecraft.Asset;
 import com.skcraft.launcher.model.minecraft.AssetsIndex;
 import com.skcraft.launcher.model.minecraft.VersionManifest;
 import com.skcraft.launcher.persistence.Persistence;
+import com.skcraft.launcher.util.FileUtils;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.java.Log;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
+import static com.skcraft.launcher.LauncherUtils.checkInterrupted;
 import static com.skcraft.launcher.util.SharedLocale.tr;
 
 /**
@@ -31,6 +37,9 @@ import static com.skcraft.launcher.util.SharedLocale.tr;
 @Log
 public class AssetsRoot {
 
+    private static final int MAX_THREAD_COUNT = 8;
+    private static final long STALE_TREE_AGE = TimeUnit.HOURS.toMillis(1);
+
     @Getter
     private final File dir;
 
@@ -50,7 +59,17 @@ public class AssetsRoot {
      * @return the file, which may not exist
      */
     public File getIndexPath(VersionManifest versionManifest) {
-        return new File(dir, "indexes/" + versionManifest.getAssetId() + ".json");
+        return getIndexPath(versionManifest.getAssetId());
+    }
+
+    /**
+     * Get the path to the index .json file for an asset index ID.
+     *
+     * @param indexId the index ID
+     * @return the file, which may not exist
+     */
+    public File getIndexPath(String indexId) {
+        return new File(dir, "indexes/" + indexId + ".json");
     }
 
     /**
@@ -60,7 +79,16 @@ public class AssetsRoot {
      * @return the file, which may not exist
      */
     public File getObjectPath(Asset asset) {
-        String hash = asset.getHash();
+        return getObjectPath(asset.getHash());
+    }
+
+    /**
+     * Get the local path for an asset with the given hash.
+     *
+     * @param hash the hash of the asset
+     * @return the file, which may not exist
+     */
+    public File getObjectPath(String hash) {
         return new File(dir, "objects/" + hash.substring(0, 2) + "/" + hash);
     }
 
@@ -73,81 +101,226 @@ public class AssetsRoot {
      * @param versionManifest the version manifest
      * @return the builder
      * @throws LauncherException
+     * @throws IOException on I/O error
+     */
+    public AssetsTreeBuilder createAssetsBuilder(@NonNull VersionManifest versionManifest) throws LauncherException, IOException {
+        return createAssetsBuilder(versionManifest.getAssetId());
+    }
+
+    /**
+     * Create an instance of the assets tree builder for an asset index ID.
+     *
+     * @param indexId the index ID
+     * @return the builder
+     * @throws LauncherException
+     * @throws IOException on I/O error
+     * @see #createAssetsBuilder(VersionManifest)
      */
-    public AssetsTreeBuilder createAssetsBuilder(@NonNull VersionManifest versionManifest) throws LauncherException {
-        String indexId = versionManifest.getAssetId();
-        File path = getIndexPath(versionManifest);
-        AssetsIndex index = Persistence.read(path, AssetsIndex.class, true);
-        if (index == null || index.getObjects() == null) {
+    public AssetsTreeBuilder createAssetsBuilder(@NonNull String indexId) throws LauncherException, IOException {
+        File path = getIndexPath(indexId);
+        if (!path.exists()) {
             throw new LauncherException("Missing index at " + path, tr("assets.missingIndex", path.getAbsolutePath()));
         }
         File treeDir = new File(dir, "virtual/" + indexId);
-        treeDir.mkdirs();
-        return new AssetsTreeBuilder(index, treeDir);
+        File markerFile = new File(dir, "virtual/" + indexId + ".complete");
+        return new AssetsTreeBuilder(path, FileUtils.getShaHash(path), treeDir, markerFile);
+    }
+
+    /**
+     * Delete the virtual trees that were built by earlier versions of the
+     * launcher, which built one for every index.
+     *
+     * <p>Trees are built only for indexes that need one, and every tree
+     * that was completely built has a marker file, so a tree without one
+     * is either left over from an earlier version or from a build that
+     * was interrupted, and would be rebuilt anyway. Trees that were changed
+     * recently are left alone, because they may still be being built.</p>
+     */
+    public void removeStaleTrees() {
+        File[] trees = new File(dir, "virtual").listFiles();
+        if (trees == null) {
+            return;
+        }
+
+        long cutoff = System.currentTimeMillis() - STALE_TREE_AGE;
+
+        for (File treeDir : trees) {
+            if (!treeDir.isDirectory() || treeDir.lastModified() > cutoff) {
+                continue;
+            }
+
+            if (new File(treeDir.getParentFile(), treeDir.getName() + ".complete").exists()) {
+                continue;
+            }
+
+            log.info("Removing unneeded asset virtual tree at '" + treeDir.getAbsolutePath() + "'...");
+            try {
+                org.apache.commons.io.FileUtils.deleteDirectory(treeDir);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to remove " + treeDir.getAbsolutePath(), e);
+            }
+        }
     }
 
     public class AssetsTreeBuilder implements ProgressObservable {
-        private final AssetsIndex index;
+        private final File indexPath;
+        private final String indexHash;
         private final File destDir;
-        private final int count;
-        private int processed = 0;
+        private final File markerFile;
+        private volatile int count;
+        private final AtomicInteger processed = new AtomicInteger();
+        private volatile boolean supportsLinks = true;
 
-        public AssetsTreeBuilder(AssetsIndex index, File destDir) {
-            this.index = index;
+        /**
+         * Create a new builder.
+         *
+         * <p>The index is only read if the tree has to be built.</p>
+         *
+         * @param indexPath the path to the assets index
+         * @param indexHash the SHA-1 hash of the index file
+         * @param destDir the directory to build the tree in
+         * @param markerFile the file that records the hash of the index once the tree is complete
+         */
+        public AssetsTreeBuilder(File indexPath, String indexHash, File destDir, File markerFile) {
+            this.indexPath = indexPath;
+            this.indexHash = indexHash;
             this.destDir = destDir;
-            count = index.getObjects().size();
+            this.markerFile = markerFile;
+        }
+
+        /**
+         * Check whether the tree was already completely built from the
+         * same index.
+         *
+         * @return true if the tree is complete
+         */
+        public boolean isComplete() {
+            try {
+                return markerFile.exists()
+                        && indexHash.equals(new String(Files.readAllBytes(markerFile.toPath()), Charsets.UTF_8).trim());
+            } catch (IOException e) {
+                return false;
+            }
         }
 
-        public File build() throws IOException, LauncherException {
+        public File build() throws IOException, LauncherException, InterruptedException {
+            if (isComplete()) {
+                AssetsRoot.log.info("Asset virtual tree at '" + destDir.getAbsolutePath() + "' is up to date");
+                return destDir;
+            }
+
+            AssetsIndex index = Persistence.read(indexPath, AssetsIndex.class, true);
+            if (index == null || index.getObjects() == null) {
+                throw new LauncherException("Missing index at " + indexPath,
+                        tr("assets.missingIndex", indexPath.getAbsolutePath()));
+            }
+
             AssetsRoot.log.info("Building asset virtual tree at '" + destDir.getAbsolutePath() + "'...");
+            markerFile.delete();
+            destDir.mkdirs();
+            count = index.getObjects().size();
 
-            boolean supportsLinks = true;
-            for (Map.Entry<String, Asset> entry : index.getObjects().entrySet()) {
-                File objectPath = getObjectPath(entry.getValue());
-                File virtualPath = new File(destDir, entry.getKey());
-                virtualPath.getParentFile().mkdirs();
-                if (!virtualPath.exists()) {
-                    log.log(Level.INFO, "Copying {0} to {1}...", new Object[] {
-                            objectPath.getAbsolutePath(), virtualPath.getAbsolutePath()});
-
-                    if (!objectPath.exists()) {
-                        String message = tr("assets.missingObject", objectPath.getAbsolutePath());
-                        throw new LauncherException("Missing object " + objectPath.getAbsolutePath(), message);
-                    }
+            // Create each directory once rather than once per object
+            List<Map.Entry<String, Asset>> entries = new ArrayList<Map.Entry<String, Asset>>(index.getObjects().entrySet());
+            Set<File> dirs = new HashSet<File>();
+            for (Map.Entry<String, Asset> entry : entries) {
+                File parent = new File(destDir, entry.getKey()).getParentFile();
+                if (dirs.add(parent)) {
+                    parent.mkdirs();
+                }
+            }
 
-                    if (supportsLinks) {
-                        try {
-                            Files.createLink(virtualPath.toPath(), objectPath.toPath());
-                        } catch (UnsupportedOperationException e) {
-                            supportsLinks = false;
+            int threadCount = Math.max(1, Math.min(MAX_THREAD_COUNT, Runtime.getRuntime().availableProcessors()));
+            int batchSize = Math.max(1, (entries.size() + threadCount - 1) / threadCount);
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (int i = 0; i < entries.size(); i += batchSize) {
+                final List<Map.Entry<String, Asset>> batch = entries.subList(i, Math.min(entries.size(), i + batchSize));
+                tasks.add(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        for (Map.Entry<String, Asset> entry : batch) {
+                            checkInterrupted();
+                            placeObject(entry.getValue(), new File(destDir, entry.getKey()));
+                            processed.incrementAndGet();
                         }
+                        return null;
                     }
+                });
+            }
 
-                    if (!supportsLinks) {
-                        Files.copy(objectPath.toPath(), virtualPath.toPath());
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            try {
+                for (Future<Object> future : executor.invokeAll(tasks)) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof LauncherException) {
+                            throw (LauncherException) cause;
+                        } else if (cause instanceof IOException) {
+                            throw (IOException) cause;
+                        } else if (cause instanceof InterruptedException) {
+                            throw (InterruptedException) cause;
+                        } else {
+                            throw new IOException("Failed to build the asset virtual tree", cause);
+                        }
                     }
                 }
-                processed++;
+            } finally {
+                executor.shutdownNow();
             }
 
+            Files.write(markerFile.toPath(), indexHash.getBytes(Charsets.UTF_8));
+
             return destDir;
         }
 
+        private void placeObject(Asset asset, File virtualPath) throws IOException, LauncherException {
+            if (virtualPath.exists()) {
+                return;
+            }
+
+            File objectPath = getObjectPath(asset);
+            log.log(Level.INFO, "Copying {0} to {1}...", new Object[] {
+                    objectPath.getAbsolutePath(), virtualPath.getAbsolutePath()});
+
+            if (!objectPath.exists()) {
+                String message = tr("assets.missingObject", objectPath.getAbsolutePath());
+                throw new LauncherException("Missing object " + objectPath.getAbsolutePath(), message);
+            }
+
+            try {
+                if (supportsLinks) {
+                    try {
+                        Files.createLink(virtualPath.toPath(), objectPath.toPath());
+                        return;
+                    } catch (UnsupportedOperationException e) {
+                        supportsLinks = false;
+                    }
+                }
+
+                Files.copy(objectPath.toPath(), virtualPath.toPath());
+            } catch (FileAlreadyExistsException e) {
+                // The same object is listed under another name
+            }
+        }
+
         @Override
         public double getProgress() {
             if (count == 0) {
                 return -1;
             } else {
-                return processed / (double) count;
+                return processed.get() / (double) count;
             }
         }
 
         @Override
         public String getStatus() {
+            int remaining = count - processed.get();
             if (count == 0) {
-                return tr("assets.expanding1", count, count - processed);
+                return tr("assets.expanding1", count, remaining);
             } else {
-                return tr("assets.expandingN", count, count - processed);
+                return tr("assets.expandingN", count, remaining);
             }
         }
     }
@@ -119,6 +119,16 @@ public class Instance implements Comparable<Instance> {
         return new File(getDir(), "version.json");
     }
 
+    /**
+     * Get the file for the journal of old files that remain to be deleted.
+     *
+     * @return the journal path, which may not exist
+     */
+    @JsonIgnore
+    public File getCleanupJournalPath() {
+        return new File(getDir(), "cleanup_journal.json");
+    }
+
     /**
      * Get the file for the custom JAR file.
      *
@@ -137,8 +137,7 @@ public class InstanceList {
                         .get(packagesURL)
                         .execute()
                         .expectResponseCode(200)
-                        .returnContent()
-                        .asJson(PackageList.class);
+                        .returnJson(PackageList.class);
 
                 if (packages.getMinimumVersion() > Launcher.PROTOCOL_VERSION) {
                     throw new LauncherException("Update required", SharedLocale.tr("errors.updateRequiredError"));
@@ -66,6 +66,8 @@ public final class Launcher {
     @Getter private final Configuration config;
     @Getter private final AccountList accounts;
     @Getter private final AssetsRoot assets;
+    @Getter private final ObjectStore objectStore;
+    @Getter private final NativesCache nativesCache;
     @Getter private final LaunchSupervisor launchSupervisor = new LaunchSupervisor(this);
     @Getter private final UpdateManager updateManager = new UpdateManager(this);
     @Getter private final InstanceTasks instanceTasks = new InstanceTasks(this);
@@ -98,6 +100,8 @@ public final class Launcher {
         this.properties = LauncherUtils.loadProperties(Launcher.class, "launcher.properties", "com.skcraft.launcher.propertiesFile");
         this.instances = new InstanceList(this);
         this.assets = new AssetsRoot(new File(baseDir, "assets"));
+        this.objectStore = new ObjectStore(new File(getCommonDataDir(), "objects"));
+        this.nativesCache = new NativesCache(new File(getCommonDataDir(), "natives"));
         this.config = Persistence.load(new File(configDir, "config.json"), Configuration.class);
         this.accounts = Persistence.load(new File(configDir, "accounts.dat"), AccountList.class);
 
@@ -107,6 +111,8 @@ public final class Launcher {
             @Override
             public void run() {
                 cleanupExtractDir();
+                nativesCache.cleanup();
+                objectStore.collectGarbage();
             }
         });
 
@@ -222,7 +228,8 @@ public final class Launcher {
     }
 
     /**
-     * Delete old extracted files.
+     * Delete old extracted files, which earlier versions of the launcher
+     * created for every launch before natives were cached.
      */
     public void cleanupExtractDir() {
         log.info("Cleaning up temporary extracted files directory...");
@@ -253,18 +260,6 @@ public final class Launcher {
         }
     }
 
-    /**
-     * Create a new temporary directory to extract files to.
-     *
-     * @return the directory path
-     */
-    public File createExtractDir() {
-        File dir = new File(getExtractDir(), String.valueOf(System.currentTimeMillis()));
-        dir.mkdirs();
-        log.info("Created temporary directory " + dir.getAbsolutePath());
-        return dir;
-    }
-
     /**
      * Get the directory to store the launcher binaries.
      *
@@ -0,0 +1,298 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.skcraft.launcher.install.ZipExtract;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * A persistent cache of extracted native libraries.
+ *
+ * <p>The natives for a launch are extracted once into a directory named
+ * after the paths and hashes of the native libraries that the version
+ * uses, and later launches of any instance with the same libraries reuse
+ * that directory. A directory is only valid once its marker file exists,
+ * which is created after extraction has finished and removed after the
+ * directory is deleted.</p>
+ *
+ * <p>Every directory has a lock file, which may be shared by several
+ * launchers running at once. A launcher holds a shared lock on it for as
+ * long as a game that was launched with the directory is running, and an
+ * exclusive lock while extracting into the directory or deleting it, so
+ * that a directory is never removed while it is in use.</p>
+ */
+@Log
+public class NativesCache {
+
+    private static final long UNUSED_EXPIRY = TimeUnit.DAYS.toMillis(30);
+
+    @Getter
+    private final File dir;
+    private final Map<String, Reference> references = new HashMap<String, Reference>();
+
+    /**
+     * Create a new instance.
+     *
+     * @param dir the directory of the cache
+     */
+    public NativesCache(@NonNull File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Get a directory with the given native libraries extracted into it,
+     * extracting them if this has not been done before.
+     *
+     * <p>Every call must be matched with a call to {@link #release(File)}
+     * once the directory is no longer used.</p>
+     *
+     * @param libraries the native libraries
+     * @return the directory
+     * @throws IOException on I/O error
+     */
+    public synchronized File acquire(@NonNull List<Entry> libraries) throws IOException {
+        String key = getKey(libraries);
+        File target = new File(dir, key);
+        File marker = new File(dir, key + ".complete");
+
+        Reference reference = references.get(key);
+        if (reference == null) {
+            dir.mkdirs();
+            RandomAccessFile lockFile = new RandomAccessFile(new File(dir, key + ".lock"), "rw");
+            try {
+                reference = new Reference(lockFile, lockShared(lockFile.getChannel(), libraries, target, marker));
+            } catch (IOException e) {
+                lockFile.close();
+                throw e;
+            }
+            references.put(key, reference);
+        }
+
+        reference.count++;
+        marker.setLastModified(System.currentTimeMillis());
+
+        return target;
+    }
+
+    /**
+     * Take a shared lock on the directory, extracting the libraries into it
+     * first if it is not valid.
+     */
+    private FileLock lockShared(FileChannel channel, List<Entry> libraries, File target, File marker) throws IOException {
+        while (true) {
+            if (!isComplete(target, marker)) {
+                FileLock lock = channel.lock();
+                try {
+                    // Another launcher may have extracted the libraries while this one waited
+                    if (!isComplete(target, marker)) {
+                        extract(libraries, target, marker);
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+
+            FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+            // The directory may have been removed between the two locks
+            if (isComplete(target, marker)) {
+                return lock;
+            }
+            lock.release();
+        }
+    }
+
+    private void extract(List<Entry> libraries, File target, File marker) throws IOException {
+        log.info("Extracting natives to " + target.getAbsolutePath() + "...");
+
+        File tempDir = new File(dir, target.getName() + ".tmp");
+        marker.delete();
+        FileUtils.deleteDirectory(tempDir);
+        FileUtils.deleteDirectory(target);
+        tempDir.mkdirs();
+
+        for (Entry library : libraries) {
+            ZipExtract zipExtract = new ZipExtract(library.getFile(), tempDir);
+            zipExtract.setExclude(library.getExclude());
+            try {
+                zipExtract.run();
+            } catch (RuntimeException e) {
+                throw new IOException("Failed to extract " + library.getFile().getAbsolutePath(), e);
+            }
+        }
+
+        Files.move(tempDir.toPath(), target.toPath());
+        marker.createNewFile();
+    }
+
+    private static boolean isComplete(File target, File marker) {
+        return marker.exists() && target.isDirectory();
+    }
+
+    /**
+     * Release a directory returned by {@link #acquire(List)}.
+     *
+     * @param target the directory
+     */
+    public synchronized void release(@NonNull File target) {
+        String key = target.getName();
+        Reference reference = references.get(key);
+        if (reference == null) {
+            return;
+        }
+
+        if (--reference.count <= 0) {
+            references.remove(key);
+            reference.close();
+        }
+    }
+
+    /**
+     * Delete directories that are not in use and have not been used for
+     * some time, as well as any that were left incomplete.
+     *
+     * <p>Directories that another launcher is using or extracting into
+     * are skipped.</p>
+     */
+    public synchronized void cleanup() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        for (File file : files) {
+            if (!file.isDirectory()) {
+                continue;
+            }
+
+            String key = file.getName();
+            if (key.endsWith(".tmp")) {
+                key = key.substring(0, key.length() - 4);
+            }
+
+            if (references.containsKey(key)) {
+                continue;
+            }
+
+            File target = new File(dir, key);
+            File marker = new File(dir, key + ".complete");
+            if (file.equals(target) && isComplete(target, marker) && now - marker.lastModified() < UNUSED_EXPIRY) {
+                continue;
+            }
+
+            try {
+                RandomAccessFile lockFile = new RandomAccessFile(new File(dir, key + ".lock"), "rw");
+                try {
+                    FileLock lock = lockFile.getChannel().tryLock();
+                    if (lock == null) {
+                        continue;
+                    }
+
+                    try {
+                        log.info("Removing " + file.getAbsolutePath() + "...");
+                        // The directory goes first, so that an interrupted removal never
+                        // leaves a marker for a directory that is only partly there
+                        FileUtils.deleteDirectory(file);
+                        if (file.equals(target)) {
+                            marker.delete();
+                        }
+                    } finally {
+                        lock.release();
+                    }
+                } finally {
+                    lockFile.close();
+                }
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to delete " + file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    private static String getKey(List<Entry> libraries) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (Entry library : libraries) {
+            hasher.putString(library.getPath(), Charsets.UTF_8);
+            hasher.putByte((byte) 0);
+            if (library.getHash() != null) {
+                hasher.putString(library.getHash().toLowerCase(), Charsets.UTF_8);
+            } else {
+                // No known hash, so fall back to whether the file was changed
+                hasher.putLong(library.getFile().length());
+                hasher.putLong(library.getFile().lastModified());
+            }
+            hasher.putByte((byte) 0);
+            if (library.getExclude() != null) {
+                for (String pattern : library.getExclude()) {
+                    hasher.putString(pattern, Charsets.UTF_8);
+                    hasher.putByte((byte) 0);
+                }
+            }
+            hasher.putByte((byte) '\n');
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * A native library to extract.
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Entry {
+        private String path;
+        private String hash;
+        private File file;
+        private List<String> exclude;
+    }
+
+    /**
+     * A directory that is in use by this launcher, with the shared lock that
+     * is held on it until the last game that uses it has exited.
+     */
+    private static class Reference {
+        private final RandomAccessFile lockFile;
+        private final FileLock lock;
+        private int count;
+
+        private Reference(RandomAccessFile lockFile, FileLock lock) {
+            this.lockFile = lockFile;
+            this.lock = lock;
+        }
+
+        private void close() {
+            try {
+                lock.release();
+                lockFile.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to release natives lock", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.skcraft.launcher.persistence.Binary;
+import lombok.Data;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers, for each object of an {@link ObjectStore}, the size,
+ * modification time and file key it had when it was verified, and the
+ * files that were linked to it.
+ *
+ * <p>The index is bound with {@link com.skcraft.launcher.persistence.Persistence},
+ * which identifies it by its hash code, so it does not override
+ * <code>equals()</code> and <code>hashCode()</code>. Its methods synchronize
+ * on the index, and it should only be serialized while holding that lock,
+ * as {@link ObjectStore#commit()} does.</p>
+ */
+@Getter
+@Setter
+@Binary
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ObjectIndex {
+
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Check whether the object has not changed since it was verified.
+     *
+     * <p>Objects are hard linked into instances, so an instance that writes to
+     * its copy in place also changes the object, along with its
+     * modification time.</p>
+     *
+     * @param hash the SHA-1 hash
+     * @param file the object file
+     * @return true if the object is known to be intact
+     */
+    public synchronized boolean isVerified(@NonNull String hash, @NonNull File file) {
+        Entry entry = entries.get(hash);
+        if (entry == null) {
+            return false;
+        }
+
+        Entry current = stat(file);
+        return current != null && current.matches(entry);
+    }
+
+    /**
+     * Record that the object has been verified, keeping the references
+     * that are already known.
+     *
+     * @param hash the SHA-1 hash
+     * @param file the object file
+     */
+    public synchronized void put(@NonNull String hash, @NonNull File file) {
+        Entry entry = stat(file);
+        if (entry != null) {
+            Entry previous = entries.get(hash);
+            if (previous != null) {
+                entry.getReferences().addAll(previous.getReferences());
+            }
+            entry.setStored(System.currentTimeMillis());
+            entries.put(hash, entry);
+        } else {
+            entries.remove(hash);
+        }
+    }
+
+    /**
+     * Forget about the object.
+     *
+     * @param hash the SHA-1 hash
+     */
+    public synchronized void remove(@NonNull String hash) {
+        entries.remove(hash);
+    }
+
+    /**
+     * Record that a file was linked to the object.
+     *
+     * @param hash the SHA-1 hash
+     * @param target the linked file
+     */
+    public synchronized void addReference(@NonNull String hash, @NonNull File target) {
+        Entry entry = entries.get(hash);
+        if (entry != null) {
+            entry.getReferences().add(target.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Check whether the object is still in use, forgetting the files that
+     * have been deleted or replaced since they were linked to it.
+     *
+     * <p>Objects that the index does not know about yet are added to it, so
+     * that they are removed by a later check if they are still unused.</p>
+     *
+     * @param hash the SHA-1 hash
+     * @param file the object file
+     * @param cutoff objects stored after this time are always kept
+     * @return true if the object is still in use
+     */
+    public synchronized boolean isReferenced(@NonNull String hash, @NonNull File file, long cutoff) {
+        Entry entry = entries.get(hash);
+        if (entry == null) {
+            put(hash, file);
+            return true;
+        }
+
+        Iterator<String> it = entry.getReferences().iterator();
+        while (it.hasNext()) {
+            File target = new File(it.next());
+            try {
+                if (!target.exists() || !Files.isSameFile(target.toPath(), file.toPath())) {
+                    it.remove();
+                }
+            } catch (IOException e) {
+                it.remove();
+            }
+        }
+
+        return !entry.getReferences().isEmpty() || entry.getStored() > cutoff;
+    }
+
+    private static Entry stat(File file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            Object fileKey = attributes.fileKey();
+
+            Entry entry = new Entry();
+            entry.setSize(attributes.size());
+            entry.setModified(attributes.lastModifiedTime().toMillis());
+            entry.setKey(fileKey != null ? fileKey.toString() : null);
+            return entry;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Data
+    public static class Entry {
+        private long size;
+        private long modified;
+        private String key;
+        private long stored;
+        private Set<String> references = new HashSet<String>();
+
+        private boolean matches(Entry other) {
+            return size == other.size && modified == other.modified &&
+                    (key == null ? other.key == null : key.equals(other.key));
+        }
+    }
+
+}
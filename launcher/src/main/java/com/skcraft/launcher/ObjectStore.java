@@ -0,0 +1,324 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher;
+
+import com.skcraft.launcher.persistence.Persistence;
+import com.skcraft.launcher.util.FileUtils;
+import com.skcraft.launcher.util.HashMismatchException;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * A launcher-wide, content-addressed store of modpack archives, keyed by
+ * their SHA-1 hash. Archives that several instances have in common are only
+ * downloaded once, and are then hard linked into the content directory of
+ * every instance that needs them.
+ *
+ * <p>Only files that can be linked are stored, because a store that has to
+ * copy its objects into every instance would keep each file twice. Objects
+ * are verified when they are stored, and again whenever they may have been
+ * changed through one of their links. Objects that are no longer linked
+ * into any instance are removed by {@link #collectGarbage()}.</p>
+ *
+ * <p>The index of the store is only saved by {@link #commit()}, which
+ * should be called once an install is done with the store.</p>
+ */
+@Log
+public class ObjectStore {
+
+    private static final long GARBAGE_GRACE_PERIOD = TimeUnit.DAYS.toMillis(1);
+
+    @Getter
+    private final File dir;
+    private final ObjectIndex index;
+    private final ConcurrentMap<FileStore, Boolean> linkSupport = new ConcurrentHashMap<FileStore, Boolean>();
+
+    /**
+     * Create a new instance.
+     *
+     * @param dir the directory of the store
+     */
+    public ObjectStore(@NonNull File dir) {
+        this.dir = dir;
+        this.index = Persistence.load(new File(dir, "index.dat"), ObjectIndex.class);
+    }
+
+    /**
+     * Get the path to the object with the given hash.
+     *
+     * @param hash the SHA-1 hash
+     * @return the file, which may not exist
+     */
+    public File getObjectPath(@NonNull String hash) {
+        hash = hash.toLowerCase();
+        return new File(dir, hash.substring(0, 2) + "/" + hash);
+    }
+
+    /**
+     * Check whether the store has an intact object with the given hash.
+     *
+     * <p>If the object may have been changed since it was verified, it is
+     * hashed again, and removed from the store if it no longer matches.</p>
+     *
+     * @param hash the SHA-1 hash
+     * @return true if the object exists
+     */
+    public boolean contains(@NonNull String hash) {
+        hash = hash.toLowerCase();
+        File objectPath = getObjectPath(hash);
+
+        if (!objectPath.exists()) {
+            return false;
+        }
+
+        if (index.isVerified(hash, objectPath)) {
+            return true;
+        }
+
+        try {
+            if (FileUtils.getShaHash(objectPath).equals(hash)) {
+                index.put(hash, objectPath);
+                return true;
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to verify object " + hash, e);
+            return false;
+        }
+
+        log.log(Level.WARNING, "Object " + hash + " was modified through one of its links, removing it");
+        objectPath.delete();
+        index.remove(hash);
+        return false;
+    }
+
+    /**
+     * Check whether the given file would be linked to an object of the
+     * store, rather than copied.
+     *
+     * <p>Only archives (.jar and .zip files) are linked, because the game
+     * never writes to them. Other files, such as configuration files, may be
+     * rewritten in place by the game, which would change the object for every
+     * other instance. Links are also not possible across volumes, or on some
+     * file systems (such as FAT).</p>
+     *
+     * @param target the destination file
+     * @return true if the file can share its object
+     */
+    public boolean canShare(@NonNull File target) {
+        if (!isArchive(target)) {
+            return false;
+        }
+
+        File targetDir = target.getAbsoluteFile().getParentFile();
+        targetDir.mkdirs();
+
+        try {
+            FileStore fileStore = Files.getFileStore(targetDir.toPath());
+            Boolean supported = linkSupport.get(fileStore);
+            if (supported == null) {
+                supported = probeLink(targetDir);
+                linkSupport.put(fileStore, supported);
+            }
+            return supported;
+        } catch (IOException e) {
+            log.log(Level.FINE, "Failed to check whether " + targetDir.getAbsolutePath() + " supports links", e);
+            return false;
+        }
+    }
+
+    private boolean probeLink(File targetDir) {
+        File source = null;
+        File link = null;
+
+        try {
+            dir.mkdirs();
+            source = File.createTempFile("link", ".tmp", dir);
+            link = new File(targetDir, source.getName());
+            Files.createLink(link.toPath(), source.toPath());
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        } catch (IOException e) {
+            log.log(Level.INFO, "Can't link from " + dir.getAbsolutePath() + " to " +
+                    targetDir.getAbsolutePath() + ", so files installed there won't be shared", e);
+            return false;
+        } finally {
+            if (link != null) {
+                link.delete();
+            }
+            if (source != null) {
+                source.delete();
+            }
+        }
+    }
+
+    /**
+     * Move a freshly downloaded file into the store.
+     *
+     * <p>The file is hashed before it is stored, so that a corrupt or partial
+     * download cannot be shared with other instances. If the store already
+     * has the object, the given file is deleted.</p>
+     *
+     * @param file the file to move into the store
+     * @param hash the SHA-1 hash of the file
+     * @throws HashMismatchException if the file does not match the hash, in which case it is deleted
+     * @throws IOException on I/O error
+     */
+    public void put(@NonNull File file, @NonNull String hash) throws IOException {
+        put(file, hash, false);
+    }
+
+    /**
+     * Move a file into the store.
+     *
+     * <p>If the store already has the object, the given file is deleted.</p>
+     *
+     * @param file the file to move into the store
+     * @param hash the SHA-1 hash of the file
+     * @param verified true if the file was already checked against the hash,
+     *                 such as by the downloader, so that it is not hashed again
+     * @throws HashMismatchException if the file does not match the hash, in which case it is deleted
+     * @throws IOException on I/O error
+     */
+    public void put(@NonNull File file, @NonNull String hash, boolean verified) throws IOException {
+        hash = hash.toLowerCase();
+        File objectPath = getObjectPath(hash);
+
+        if (!verified) {
+            String actual = FileUtils.getShaHash(file);
+            if (!actual.equals(hash)) {
+                file.delete();
+                throw new HashMismatchException("Refusing to store " + file.getAbsolutePath(), hash, actual);
+            }
+        }
+
+        if (contains(hash)) {
+            file.delete();
+            return;
+        }
+
+        objectPath.getParentFile().mkdirs();
+        // Installs may run in parallel, so each one needs its own temporary name
+        File tempPath = File.createTempFile(objectPath.getName(), ".tmp", objectPath.getParentFile());
+        Files.move(file.toPath(), tempPath.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tempPath.toPath(), objectPath.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        index.put(hash, objectPath);
+    }
+
+    /**
+     * Place a stored object at the given location, replacing any
+     * existing file.
+     *
+     * <p>The object is hard linked if {@link #canShare(File)} allows it,
+     * and copied otherwise.</p>
+     *
+     * @param hash the SHA-1 hash
+     * @param target the destination file
+     * @throws IOException on I/O error, or if the object does not exist
+     */
+    public void materialize(@NonNull String hash, @NonNull File target) throws IOException {
+        hash = hash.toLowerCase();
+        File objectPath = getObjectPath(hash);
+        if (!objectPath.exists()) {
+            throw new IOException("Object " + hash + " is not in the store at " + dir.getAbsolutePath());
+        }
+
+        target.getParentFile().mkdirs();
+        target.delete();
+
+        if (canShare(target)) {
+            try {
+                Files.createLink(target.toPath(), objectPath.toPath());
+                index.addReference(hash, target);
+                return;
+            } catch (IOException e) {
+                log.log(Level.FINE, "Failed to link " + target.getAbsolutePath() + ", copying instead", e);
+            }
+        }
+
+        Files.copy(objectPath.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Remove the objects that are no longer linked into any instance, and
+     * temporary files left behind by interrupted installs.
+     *
+     * <p>Objects that were stored recently are kept, because the install
+     * that stored them may not have linked them yet. Removing an object
+     * never affects the instances, which keep their own link to the file.</p>
+     */
+    public void collectGarbage() {
+        long cutoff = System.currentTimeMillis() - GARBAGE_GRACE_PERIOD;
+        int removed = 0;
+
+        File[] shards = dir.listFiles();
+        if (shards == null) {
+            return;
+        }
+
+        for (File shard : shards) {
+            if (shard.getName().endsWith(".tmp") && shard.lastModified() < cutoff) {
+                shard.delete();
+            }
+
+            File[] files = shard.listFiles();
+            if (files == null) {
+                continue;
+            }
+
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(".tmp")) {
+                    if (file.lastModified() < cutoff) {
+                        file.delete();
+                    }
+                } else if (!index.isReferenced(name, file, cutoff)) {
+                    if (file.delete()) {
+                        index.remove(name);
+                        removed++;
+                    }
+                }
+            }
+        }
+
+        if (removed > 0) {
+            log.info("Removed " + removed + " unused object(s) from " + dir.getAbsolutePath());
+        }
+
+        commit();
+    }
+
+    /**
+     * Save the index of the store in the background.
+     *
+     * <p>The index is serialized while its lock is held, so that installs
+     * that are still using the store can't change it halfway through.</p>
+     */
+    public void commit() {
+        synchronized (index) {
+            Persistence.commitAndForget(index);
+        }
+    }
+
+    private static boolean isArchive(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".jar") || name.endsWith(".zip");
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A limit on the number of parallel downloads from one host, which grows
+ * while doing so raises the measured throughput and shrinks when the
+ * throughput drops, latency climbs or requests start failing.
+ */
+class AdaptiveLimit {
+
+    private static final long MIN_WINDOW_TIME = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final double BASELINE_DECAY = 0.2;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private int limit;
+    private int inUse;
+
+    private long windowStart = -1;
+    private long windowBytes;
+    private long windowLatency;
+    private int windowCount;
+    private long windowMinLatency = Long.MAX_VALUE;
+    private double lastThroughput = -1;
+    private double baselineLatency = -1;
+
+    /**
+     * Create a new limit.
+     *
+     * @param minLimit the lowest limit
+     * @param initialLimit the starting limit
+     * @param maxLimit the highest limit
+     */
+    AdaptiveLimit(int minLimit, int initialLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+    }
+
+    /**
+     * Wait until another download may be started.
+     *
+     * @throws InterruptedException thrown on interruption
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (inUse >= limit) {
+            wait();
+        }
+        inUse++;
+    }
+
+    /**
+     * Mark a download as finished.
+     */
+    synchronized void release() {
+        inUse--;
+        notifyAll();
+    }
+
+    /**
+     * Record a completed download and adjust the limit once enough
+     * downloads have completed to measure the throughput.
+     *
+     * @param bytes the number of bytes downloaded
+     * @param latency the time until the response headers arrived, in nanoseconds
+     */
+    synchronized void record(long bytes, long latency) {
+        long now = System.nanoTime();
+        if (windowStart < 0) {
+            windowStart = now - latency;
+        }
+
+        windowBytes += bytes;
+        windowLatency += latency;
+        windowCount++;
+        windowMinLatency = Math.min(windowMinLatency, latency);
+
+        long elapsed = now - windowStart;
+        if (windowCount < limit || elapsed < MIN_WINDOW_TIME) {
+            return;
+        }
+
+        double throughput = windowBytes / (double) elapsed;
+        long averageLatency = windowLatency / windowCount;
+
+        if (baselineLatency >= 0 && averageLatency > baselineLatency * 2) {
+            // Requests are queueing up somewhere
+            setLimit(limit - 1);
+        } else if (lastThroughput < 0 || throughput > lastThroughput * 1.1) {
+            setLimit(limit + 1);
+        } else if (throughput < lastThroughput * 0.9) {
+            setLimit(limit - 1);
+        }
+
+        // Follow a drop in latency right away, but a rise only slowly, so that
+        // one unusually fast request early on does not count as normal forever
+        if (baselineLatency < 0 || windowMinLatency < baselineLatency) {
+            baselineLatency = windowMinLatency;
+        } else {
+            baselineLatency += (windowMinLatency - baselineLatency) * BASELINE_DECAY;
+        }
+
+        lastThroughput = throughput;
+        windowStart = -1;
+        windowBytes = 0;
+        windowLatency = 0;
+        windowCount = 0;
+        windowMinLatency = Long.MAX_VALUE;
+    }
+
+    /**
+     * Record a download that failed because of the connection or the server
+     * being overloaded, which halves the limit and starts measuring
+     * throughput and latency anew.
+     */
+    synchronized void recordFailure() {
+        setLimit(limit / 2);
+        lastThroughput = -1;
+        baselineLatency = -1;
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    private void setLimit(int limit) {
+        this.limit = Math.max(minLimit, Math.min(maxLimit, limit));
+        notifyAll();
+    }
+
+}
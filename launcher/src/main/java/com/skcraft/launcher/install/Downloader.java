@@ -18,4 +18,18 @@ public interface Downloader extends ProgressObservable {
     File download(List<URL> urls, String key, long size, String name);
 
     File download(URL url, String key, long size, String name);
+
+    /**
+     * Queue a download whose SHA-1 hash is verified while it is downloaded.
+     *
+     * @param urls the URLs to try, in order
+     * @param key a key to tell apart downloads from the same URL
+     * @param size the expected size, or an estimate
+     * @param name the name to show in the progress status
+     * @param hash the expected SHA-1 hash, or null to not verify the download
+     * @return the file that the download will be saved to
+     */
+    File download(List<URL> urls, String key, long size, String name, String hash);
+
+    File download(URL url, String key, long size, String name, String hash);
 }
@@ -0,0 +1,111 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import com.skcraft.launcher.persistence.Binary;
+import lombok.Data;
+import lombok.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Remembers the hashes of installed files that have already been verified,
+ * along with their size, modification time and file key (the inode on
+ * most systems), so that unchanged files don't have to be rehashed on
+ * every update.
+ */
+@Data
+@Binary
+public class FileIndex {
+
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Check whether the file was verified to have the given hash, and has not
+     * changed since.
+     *
+     * @param path the path of the file, relative to the content directory
+     * @param file the file
+     * @param hash the expected SHA-1 hash
+     * @return true if the file is known to have the hash
+     */
+    public synchronized boolean isVerified(@NonNull String path, @NonNull File file, @NonNull String hash) {
+        Entry entry = entries.get(path);
+        if (entry == null || !hash.equalsIgnoreCase(entry.getHash())) {
+            return false;
+        }
+
+        Entry current = stat(file);
+        return current != null && current.matches(entry);
+    }
+
+    /**
+     * Record that the file has been verified to have the given hash.
+     *
+     * @param path the path of the file, relative to the content directory
+     * @param file the file
+     * @param hash the SHA-1 hash
+     */
+    public synchronized void put(@NonNull String path, @NonNull File file, @NonNull String hash) {
+        Entry entry = stat(file);
+        if (entry != null) {
+            entry.setHash(hash);
+            entries.put(path, entry);
+        } else {
+            entries.remove(path);
+        }
+    }
+
+    /**
+     * Remove entries for files that no longer exist.
+     *
+     * @param baseDir the content directory
+     */
+    public synchronized void prune(@NonNull File baseDir) {
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (!new File(baseDir, it.next()).exists()) {
+                it.remove();
+            }
+        }
+    }
+
+    private static Entry stat(File file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            Object fileKey = attributes.fileKey();
+
+            Entry entry = new Entry();
+            entry.setSize(attributes.size());
+            entry.setModified(attributes.lastModifiedTime().toMillis());
+            entry.setKey(fileKey != null ? fileKey.toString() : null);
+            return entry;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Data
+    public static class Entry {
+        private long size;
+        private long modified;
+        private String key;
+        private String hash;
+
+        private boolean matches(Entry other) {
+            return size == other.size && modified == other.modified &&
+                    (key == null ? other.key == null : key.equals(other.key));
+        }
+    }
+
+}
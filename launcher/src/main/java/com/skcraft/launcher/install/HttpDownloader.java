@@ -14,7 +14,10 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.skcraft.concurrency.Callback;
 import com.skcraft.concurrency.ProgressObservable;
+import com.skcraft.launcher.util.FileUtils;
+import com.skcraft.launcher.util.HashMismatchException;
 import com.skcraft.launcher.util.HttpRequest;
 import com.skcraft.launcher.util.SharedLocale;
 import lombok.Getter;
@@ -24,33 +27,66 @@ import lombok.extern.java.Log;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 
 import static com.skcraft.launcher.util.SharedLocale.tr;
 
+/**
+ * Downloads files in parallel.
+ *
+ * <p>Small files (such as assets) and large files (such as jars) are
+ * downloaded in separate lanes. Each lane has an {@link AdaptiveLimit} per
+ * host that adjusts how many files are downloaded at once from that host.
+ * Small files are mostly bound by latency and benefit from many parallel
+ * requests, while too many parallel streams of large files can saturate
+ * a slow link.</p>
+ *
+ * <p>Files of at least {@link #getSegmentedDownloadSize()} bytes are split into
+ * byte ranges that are downloaded in parallel, if the server supports it,
+ * because a single stream cannot fill a link with high latency.</p>
+ *
+ * <p>Progress is kept in atomic counters, so that progress reporting never
+ * has to wait on the download threads.</p>
+ */
 @Log
 public class HttpDownloader implements Downloader {
 
+    private static final long LARGE_FILE_SIZE = 2 * 1024 * 1024;
+
     private final Random random = new Random();
     private final HashFunction hf = Hashing.sha1();
 
     private final File tempDir;
-    @Getter @Setter private int threadCount = 6;
+    @Getter @Setter private int smallFileThreadCount = 32;
+    @Getter @Setter private int largeFileThreadCount = 8;
     @Getter @Setter private int retryDelay = 2000;
     @Getter @Setter private int tryCount = 3;
+    @Getter @Setter private long segmentedDownloadSize = 16 * 1024 * 1024;
+    @Getter @Setter private int segmentCount = 4;
+    @Setter private volatile Callback<File> completionListener;
 
-    private List<HttpDownloadJob> queue = new ArrayList<HttpDownloadJob>();
+    private volatile List<HttpDownloadJob> queue = new ArrayList<HttpDownloadJob>();
     private final Set<String> usedKeys = new HashSet<String>();
+    private final ConcurrentMap<String, AdaptiveLimit> smallFileLimits = new ConcurrentHashMap<String, AdaptiveLimit>();
+    private final ConcurrentMap<String, AdaptiveLimit> largeFileLimits = new ConcurrentHashMap<String, AdaptiveLimit>();
+    private ExecutorService segmentExecutor;
 
-    private final List<HttpDownloadJob> running = new ArrayList<HttpDownloadJob>();
-    private final List<HttpDownloadJob> failed = new ArrayList<HttpDownloadJob>();
-    private long downloaded = 0;
-    private long total = 0;
-    private int left = 0;
+    private final Set<HttpDownloadJob> running =
+            Collections.newSetFromMap(new ConcurrentHashMap<HttpDownloadJob, Boolean>());
+    private final AtomicInteger failed = new AtomicInteger();
+    private final LongAdder downloaded = new LongAdder();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicInteger left = new AtomicInteger();
 
     /**
      * Create a new downloader using the given executor.
@@ -78,31 +114,61 @@ public class HttpDownloader implements Downloader {
     }
 
     @Override
-    public synchronized File download(@NonNull List<URL> urls, @NonNull String key, long size, String name) {
+    public File download(@NonNull List<URL> urls, @NonNull String key, long size, String name) {
+        return download(urls, key, size, name, null);
+    }
+
+    @Override
+    public synchronized File download(@NonNull List<URL> urls, @NonNull String key, long size, String name, String hash) {
         if (urls.isEmpty()) {
             throw new IllegalArgumentException("Can't download empty list of URLs");
         }
 
-        String hash = hf.hashString(Strings.nullToEmpty(key) + urls.get(0), Charsets.UTF_8).toString();
-        hash = createUniqueKey(hash);
-        File tempFile = new File(tempDir, hash.substring(0, 2) + "/" + hash);
+        String id = hf.hashString(Strings.nullToEmpty(key) + urls.get(0), Charsets.UTF_8).toString();
+        id = createUniqueKey(id);
+        File tempFile = new File(tempDir, id.substring(0, 2) + "/" + id);
 
-        // If the file is already downloaded (such as from before), then don't re-download
-        if (!tempFile.exists()) {
-            total += size;
-            left++;
-            queue.add(new HttpDownloadJob(tempFile, urls, size, name != null ? name : tempFile.getName()));
+        // If the file is already downloaded (such as from before), then don't re-download,
+        // but only if it can be verified, because an interrupted download leaves a partial file
+        if (!isDownloaded(tempFile, hash)) {
+            total.addAndGet(size);
+            left.incrementAndGet();
+            queue.add(new HttpDownloadJob(tempFile, urls, size, name != null ? name : tempFile.getName(), hash));
         }
 
         return tempFile;
     }
 
+    private static boolean isDownloaded(File file, String hash) {
+        if (!file.exists()) {
+            return false;
+        }
+
+        if (hash != null) {
+            try {
+                if (FileUtils.getShaHash(file).equalsIgnoreCase(hash)) {
+                    return true;
+                }
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to verify " + file.getAbsolutePath(), e);
+            }
+        }
+
+        file.delete();
+        return false;
+    }
+
 
     @Override
     public File download(URL url, String key, long size, String name) {
+        return download(url, key, size, name, null);
+    }
+
+    @Override
+    public File download(URL url, String key, long size, String name, String hash) {
         List<URL> urls = new ArrayList<URL>();
         urls.add(url);
-        return download(urls, key, size, name);
+        return download(urls, key, size, name, hash);
     }
 
     /**
@@ -116,15 +182,24 @@ public class HttpDownloader implements Downloader {
             queue = Collections.unmodifiableList(queue);
         }
 
-        ListeningExecutorService executor = MoreExecutors.listeningDecorator(
-                Executors.newFixedThreadPool(threadCount));
+        ListeningExecutorService smallFileExecutor = MoreExecutors.listeningDecorator(
+                Executors.newFixedThreadPool(smallFileThreadCount));
+        ListeningExecutorService largeFileExecutor = MoreExecutors.listeningDecorator(
+                Executors.newFixedThreadPool(largeFileThreadCount));
+        // Segments count against the same per-host limits as whole files, so
+        // there are never more large file connections than the large file lane allows
+        segmentExecutor = Executors.newFixedThreadPool(largeFileThreadCount);
 
         try {
             List<ListenableFuture<?>> futures = new ArrayList<ListenableFuture<?>>();
 
             synchronized (this) {
                 for (HttpDownloadJob job : queue) {
-                    futures.add(executor.submit(job));
+                    if (job.isLarge()) {
+                        futures.add(largeFileExecutor.submit(job));
+                    } else {
+                        futures.add(smallFileExecutor.submit(job));
+                    }
                 }
             }
 
@@ -134,23 +209,80 @@ public class HttpDownloader implements Downloader {
                 throw new IOException("Something went wrong", e);
             }
 
-            synchronized (this) {
-                if (failed.size() > 0) {
-                    throw new IOException(failed.size() + " file(s) could not be downloaded");
-                }
+            int failedCount = failed.get();
+            if (failedCount > 0) {
+                throw new IOException(failedCount + " file(s) could not be downloaded");
             }
         } finally {
-            executor.shutdownNow();
+            smallFileExecutor.shutdownNow();
+            largeFileExecutor.shutdownNow();
+            segmentExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Get the concurrency limit for downloads from the given host.
+     *
+     * @param host the host
+     * @param large true for the lane for large files
+     * @return the limit
+     */
+    private AdaptiveLimit getLimit(String host, boolean large) {
+        ConcurrentMap<String, AdaptiveLimit> limits = large ? largeFileLimits : smallFileLimits;
+        AdaptiveLimit limit = limits.get(host);
+        if (limit == null) {
+            if (large) {
+                limit = new AdaptiveLimit(1, Math.min(3, largeFileThreadCount), largeFileThreadCount);
+            } else {
+                limit = new AdaptiveLimit(2, Math.min(8, smallFileThreadCount), smallFileThreadCount);
+            }
+            AdaptiveLimit existing = limits.putIfAbsent(host, limit);
+            if (existing != null) {
+                limit = existing;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Get the total size of the file from a <code>Content-Range</code> header.
+     *
+     * @param contentRange the header value, such as "bytes 0-0/1234"
+     * @return the size, or -1 if it is not known
+     */
+    private static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+
+        int index = contentRange.lastIndexOf('/');
+        if (index < 0) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(contentRange.substring(index + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
+    private static int getTotalLimit(Map<String, AdaptiveLimit> limits) {
+        int total = 0;
+        for (AdaptiveLimit limit : limits.values()) {
+            total += limit.getLimit();
+        }
+        return total;
+    }
+
     @Override
-    public synchronized double getProgress() {
+    public double getProgress() {
+        long total = this.total.get();
         if (total <= 0) {
             return -1;
         }
 
-        long downloaded = this.downloaded;
+        long downloaded = this.downloaded.sum();
         for (HttpDownloadJob job : running) {
             downloaded += Math.max(0, job.getProgress() * job.size);
         }
@@ -158,8 +290,10 @@ public class HttpDownloader implements Downloader {
     }
 
     @Override
-    public synchronized String getStatus() {
-        String failMessage = tr("downloader.failedCount", failed.size());
+    public String getStatus() {
+        List<HttpDownloadJob> running = new ArrayList<HttpDownloadJob>(this.running);
+        int failed = this.failed.get();
+        String failMessage = tr("downloader.failedCount", failed);
         if (running.size() == 1) {
             return tr("downloader.downloadingItem", running.get(0).getName()) +
                     "\n" + running.get(0).getStatus() +
@@ -170,7 +304,9 @@ public class HttpDownloader implements Downloader {
                 builder.append("\n");
                 builder.append(job.getStatus());
             }
-            return tr("downloader.downloadingList", queue.size(), left, failed.size()) +
+            return tr("downloader.downloadingList", queue.size(), left.get(), failed) +
+                    "\n" + tr("downloader.concurrency",
+                            getTotalLimit(smallFileLimits), getTotalLimit(largeFileLimits)) +
                     builder.toString() +
                     "\n" + failMessage;
         } else {
@@ -183,38 +319,41 @@ public class HttpDownloader implements Downloader {
         private final List<URL> urls;
         private final long size;
         @Getter private String name;
-        private HttpRequest request;
+        private final String hash;
+        private volatile HttpRequest request;
+        private volatile long segmentedTotal = -1;
+        private final AtomicLong segmentedRead = new AtomicLong();
 
-        private HttpDownloadJob(File destFile, List<URL> urls, long size, String name) {
+        private HttpDownloadJob(File destFile, List<URL> urls, long size, String name, String hash) {
             this.destFile = destFile;
             this.urls = urls;
             this.size = size;
             this.name = name;
+            this.hash = hash;
         }
 
         @Override
         public void run() {
             try {
-                synchronized (HttpDownloader.this) {
-                    running.add(this);
-                }
+                running.add(this);
 
                 download();
 
-                synchronized (HttpDownloader.this) {
-                    downloaded += size;
+                downloaded.add(size);
+
+                Callback<File> listener = completionListener;
+                if (listener != null) {
+                    listener.handle(destFile);
                 }
             } catch (IOException e) {
-                synchronized (HttpDownloader.this) {
-                    failed.add(this);
-                }
+                log.log(Level.WARNING, "Failed to download " + name + " from " + urls, e);
+                failed.incrementAndGet();
             } catch (InterruptedException e) {
                 log.info("Download of " + destFile + " was interrupted");
+                Thread.currentThread().interrupt();
             } finally {
-                synchronized (HttpDownloader.this) {
-                    left--;
-                    running.remove(this);
-                }
+                left.decrementAndGet();
+                running.remove(this);
             }
         }
 
@@ -248,7 +387,9 @@ public class HttpDownloader implements Downloader {
                     first = false;
 
                     try {
-                        tryDownloadFrom(url, file, null, 0);
+                        if (size < segmentedDownloadSize || segmentCount <= 1 || !tryDownloadSegmented(url, file)) {
+                            tryDownloadFrom(url, file, null, 0);
+                        }
                         return;
                     } catch (IOException e) {
                         lastException = e;
@@ -259,33 +400,249 @@ public class HttpDownloader implements Downloader {
             throw new IOException("Failed to download from " + urls, lastException);
         }
 
+        /**
+         * Try to download the file as several byte ranges in parallel.
+         *
+         * <p>Each segment takes a slot of the host's limit for large files,
+         * like any other download. If a segment fails, the partial file is
+         * abandoned so that the caller can fall back to a single stream.</p>
+         *
+         * @param url the URL
+         * @param file the file to save to
+         * @return false if the server does not support ranges, the file is too small,
+         *         or downloading a segment failed
+         * @throws InterruptedException thrown on interruption
+         */
+        private boolean tryDownloadSegmented(URL url, File file) throws InterruptedException {
+            AdaptiveLimit limit = getLimit(url.getHost(), true);
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            long total;
+
+            limit.acquire();
+            try {
+                // Find out the size of the file and whether ranges are supported
+                HttpRequest probe = HttpRequest.get(url);
+                try {
+                    probe.header("Range", "bytes=0-0").execute();
+                    total = probe.getResponseCode() == 206 ?
+                            parseContentRangeTotal(probe.getHeaderField("Content-Range")) : -1;
+                } finally {
+                    probe.close();
+                }
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to check whether " + url + " supports ranges", e);
+                return false;
+            } finally {
+                limit.release();
+            }
+
+            if (total < segmentedDownloadSize) {
+                return false;
+            }
+
+            log.log(Level.INFO, "Downloading " + total + " bytes of " + url + " in " + segmentCount + " segments");
+
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(total);
+                    FileChannel channel = raf.getChannel();
+
+                    segmentedRead.set(0);
+                    segmentedTotal = total;
+                    long segmentSize = (total + segmentCount - 1) / segmentCount;
+
+                    for (long offset = 0; offset < total; offset += segmentSize) {
+                        futures.add(segmentExecutor.submit(new SegmentDownload(
+                                url, limit, channel, offset, Math.min(total, offset + segmentSize) - 1)));
+                    }
+
+                    for (Future<?> future : futures) {
+                        try {
+                            future.get();
+                        } catch (ExecutionException e) {
+                            if (e.getCause() instanceof IOException) {
+                                throw (IOException) e.getCause();
+                            }
+                            throw new IOException("Failed to download segment of " + url, e.getCause());
+                        }
+                    }
+                } finally {
+                    for (Future<?> future : futures) {
+                        future.cancel(true);
+                    }
+                    raf.close();
+                }
+
+                if (hash != null) {
+                    String actualHash = FileUtils.getShaHash(file);
+                    if (!actualHash.equalsIgnoreCase(hash)) {
+                        throw new HashMismatchException("Downloaded content from " + url + " is corrupt",
+                                hash, actualHash);
+                    }
+                }
+
+                return true;
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to download " + url + " in segments, trying a single stream", e);
+                return false;
+            } finally {
+                segmentedTotal = -1;
+            }
+        }
+
+        private boolean isLarge() {
+            return size >= LARGE_FILE_SIZE;
+        }
+
         private void tryDownloadFrom(URL url, File file, HttpRequest.PartialDownloadInfo retryDetails, int tries)
                 throws InterruptedException, IOException {
+            Optional<HttpRequest.PartialDownloadInfo> byteRangeSupport;
+            AdaptiveLimit limit = getLimit(url.getHost(), isLarge());
+
+            limit.acquire();
             try {
+                long start = System.nanoTime();
                 request = HttpRequest.get(url);
-                request.setResumeInfo(retryDetails).execute().expectResponseCode(200).saveContent(file);
+                request.setResumeInfo(retryDetails).expectSha1(hash).execute();
+                long latency = System.nanoTime() - start;
+                request.expectResponseCode(200).saveContent(file);
+                limit.record(file.length(), latency);
+                return;
+            } catch (HashMismatchException e) {
+                log.log(Level.WARNING, "Failed to download " + url, e);
+
+                // Resuming would only append to the corrupt data, so start over
+                throw e;
             } catch (IOException e) {
                 log.log(Level.WARNING, "Failed to download " + url, e);
 
+                if (isCongestion(request)) {
+                    limit.recordFailure();
+                }
+
                 // We only want to try to resume a partial download if the request succeeded before
                 // throwing an exception halfway through. If it didn't succeed, just throw the error.
                 if (tries >= tryCount || !request.isConnected() || !request.isSuccessCode()) {
                     throw e;
                 }
 
-                Optional<HttpRequest.PartialDownloadInfo> byteRangeSupport = request.canRetryPartial();
-                if (byteRangeSupport.isPresent()) {
-                    tryDownloadFrom(url, file, byteRangeSupport.get(), tries + 1);
+                byteRangeSupport = request.canRetryPartial();
+                if (!byteRangeSupport.isPresent()) {
+                    throw e;
                 }
+            } finally {
+                limit.release();
+            }
+
+            tryDownloadFrom(url, file, byteRangeSupport.get(), tries + 1);
+        }
+
+        /**
+         * Check whether a failed request indicates that the connection or the
+         * server is overloaded, rather than the file simply not being there.
+         *
+         * @param request the request
+         * @return true on a connection error, a server error, or a transfer that broke off
+         */
+        private boolean isCongestion(HttpRequest request) {
+            if (request == null || !request.isConnected()) {
+                return true;
+            }
+
+            try {
+                int code = request.getResponseCode();
+                return code == 429 || code >= 500 || request.isSuccessCode();
+            } catch (IOException e) {
+                return true;
             }
         }
 
         @Override
         public double getProgress() {
+            long segmentedTotal = this.segmentedTotal;
+            if (segmentedTotal > 0) {
+                return segmentedRead.get() / (double) segmentedTotal;
+            }
+
             HttpRequest request = this.request;
             return request != null ? request.getProgress() : -1;
         }
 
+        /**
+         * Downloads one byte range of a segmented download.
+         */
+        private class SegmentDownload implements Callable<Object> {
+            private final URL url;
+            private final AdaptiveLimit limit;
+            private final FileChannel channel;
+            private final long first;
+            private final long last;
+
+            private SegmentDownload(URL url, AdaptiveLimit limit, FileChannel channel, long first, long last) {
+                this.url = url;
+                this.limit = limit;
+                this.channel = channel;
+                this.first = first;
+                this.last = last;
+            }
+
+            @Override
+            public Object call() throws Exception {
+                HttpRequest request = null;
+
+                limit.acquire();
+                try {
+                    long start = System.nanoTime();
+                    request = HttpRequest.get(url);
+                    request.header("Range", "bytes=" + first + "-" + last).execute();
+                    long latency = System.nanoTime() - start;
+                    request.expectResponseCode(206).saveContent(new ChannelOutputStream(channel, first));
+                    limit.record(last - first + 1, latency);
+                    return null;
+                } catch (IOException e) {
+                    if (isCongestion(request)) {
+                        limit.recordFailure();
+                    }
+                    throw e;
+                } finally {
+                    limit.release();
+                    if (request != null) {
+                        request.close();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes to a file channel from a given position onwards, without
+         * using the channel's own position, so that several streams can
+         * write to the same channel at once.
+         */
+        private class ChannelOutputStream extends OutputStream {
+            private final FileChannel channel;
+            private long position;
+
+            private ChannelOutputStream(FileChannel channel, long position) {
+                this.channel = channel;
+                this.position = position;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                segmentedRead.addAndGet(len);
+            }
+        }
+
         @Override
         public String getStatus() {
             double progress = getProgress();
@@ -1,5 +1,6 @@
 package com.skcraft.launcher.install;
 
+import com.skcraft.launcher.ObjectStore;
 import com.skcraft.launcher.model.loader.LocalLoader;
 import lombok.Data;
 
@@ -10,6 +11,8 @@ import java.util.HashMap;
 public class InstallExtras {
 	private final File contentDir;
 	private final HashMap<String, LocalLoader> loaders;
+	private final ObjectStore objectStore;
+	private final FileIndex fileIndex;
 
 	public LocalLoader getLoader(String key) {
 		return loaders.get(key);
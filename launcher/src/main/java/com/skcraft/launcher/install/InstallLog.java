@@ -7,80 +7,189 @@
 package com.skcraft.launcher.install;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.skcraft.launcher.persistence.Binary;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
 import lombok.NonNull;
+import lombok.Setter;
 
 import java.io.File;
-import java.net.URI;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+/**
+ * Records the files that were installed into an instance, grouped by the
+ * manifest entry that installed them, so that files that are no longer part
+ * of the package can be removed on the next update.
+ *
+ * <p>Entries may be added from several install threads at once. Every path
+ * is stored once and shared between its group and the lookup table. Most
+ * groups only hold one file, so each group is a small set that is locked
+ * while it is changed, rather than a concurrent one.</p>
+ */
 @Data
+@Binary
 public class InstallLog {
 
     @JsonIgnore
     private File baseDir;
-    private Map<String, Set<String>> entries = new HashMap<String, Set<String>>();
+    @JsonIgnore @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private String basePrefix;
+    private final ConcurrentMap<String, Set<String>> entries = new ConcurrentHashMap<String, Set<String>>();
     @JsonIgnore
-    private Set<String> cache = new HashSet<String>();
+    private final ConcurrentMap<String, String> cache = new ConcurrentHashMap<String, String>();
+
+    public void setBaseDir(File baseDir) {
+        this.baseDir = baseDir;
+        this.basePrefix = baseDir != null ? baseDir.getAbsolutePath() + File.separator : null;
+    }
+
+    /**
+     * Replace the entries, which is used when reading the log from disk.
+     *
+     * @param entries the entries
+     */
+    public void setEntries(Map<String, Set<String>> entries) {
+        this.entries.clear();
+        this.cache.clear();
+        for (Map.Entry<String, Set<String>> entry : entries.entrySet()) {
+            for (String path : entry.getValue()) {
+                add(entry.getKey(), path);
+            }
+        }
+    }
+
+    public void add(@NonNull String group, @NonNull String entry) {
+        entry = intern(entry);
+        if (group.equals(entry)) {
+            group = entry;
+        }
 
-    public synchronized void add(@NonNull String group, @NonNull String entry) {
-        cache.add(entry);
         Set<String> subEntries = entries.get(group);
         if (subEntries == null) {
-            subEntries = new HashSet<String>();
-            entries.put(group, subEntries);
+            subEntries = new HashSet<String>(2);
+            Set<String> existing = entries.putIfAbsent(group, subEntries);
+            if (existing != null) {
+                subEntries = existing;
+            }
+        }
+        synchronized (subEntries) {
+            subEntries.add(entry);
         }
-        subEntries.add(entry);
     }
 
-    public synchronized void add(@NonNull File group, @NonNull File entry) {
-        add(relativize(group), relativize(entry));
+    public void add(@NonNull File group, @NonNull File entry) {
+        String relativeEntry = relativize(entry);
+        add(group.equals(entry) ? relativeEntry : relativize(group), relativeEntry);
     }
 
-    public synchronized boolean has(@NonNull String entry) {
-        return cache.contains(entry);
+    public boolean has(@NonNull String entry) {
+        return cache.containsKey(entry);
     }
 
-    public synchronized boolean has(@NonNull File entry) {
+    public boolean has(@NonNull File entry) {
         return has(relativize(entry));
     }
 
-    public synchronized boolean copyGroupFrom(InstallLog other, String group) {
+    public boolean copyGroupFrom(InstallLog other, String group) {
         Set<String> otherSet = other.entries.get(group);
         if (otherSet == null) {
             return false;
         }
-        for (String entry : otherSet) {
+        String[] otherEntries;
+        synchronized (otherSet) {
+            otherEntries = otherSet.toArray(new String[otherSet.size()]);
+        }
+        for (String entry : otherEntries) {
             add(group, entry);
         }
         return true;
     }
 
-    public synchronized boolean copyGroupFrom(@NonNull InstallLog other, @NonNull File entry) {
+    public boolean copyGroupFrom(@NonNull InstallLog other, @NonNull File entry) {
         return copyGroupFrom(other, relativize(entry));
     }
 
     @JsonIgnore
-    public synchronized Set<Map.Entry<String, Set<String>>> getEntrySet() {
+    public Set<Map.Entry<String, Set<String>>> getEntrySet() {
         return entries.entrySet();
     }
 
-    public synchronized boolean hasGroup(String group) {
+    public boolean hasGroup(String group) {
         return entries.containsKey(group);
     }
 
+    /**
+     * Get every logged path in sorted order.
+     *
+     * @return the paths
+     */
+    @JsonIgnore
+    public String[] getSortedPaths() {
+        String[] paths = cache.keySet().toArray(new String[0]);
+        Arrays.sort(paths);
+        return paths;
+    }
+
+    /**
+     * Get the paths in this log that are not in the given newer log, which
+     * are the files that are no longer part of the package.
+     *
+     * @param current the newer log
+     * @return the stale paths, in sorted order
+     */
+    public List<String> getStalePaths(@NonNull InstallLog current) {
+        String[] previousPaths = getSortedPaths();
+        String[] currentPaths = current.getSortedPaths();
+        List<String> stale = new ArrayList<String>();
+
+        int j = 0;
+        for (String path : previousPaths) {
+            while (j < currentPaths.length && currentPaths[j].compareTo(path) < 0) {
+                j++;
+            }
+            if (j >= currentPaths.length || !currentPaths[j].equals(path)) {
+                stale.add(path);
+            }
+        }
+
+        return stale;
+    }
+
+    private String intern(String path) {
+        String existing = cache.putIfAbsent(path, path);
+        return existing != null ? existing : path;
+    }
+
+    /**
+     * Get the path of a file relative to the base directory, in the same
+     * form as <code>baseDir.toURI().relativize(child.toURI()).getPath()</code>,
+     * which earlier versions used, so that logs written by them still match:
+     * separators are forward slashes, and directories end with a slash.
+     *
+     * @param child the file
+     * @return the relative path
+     */
     private String relativize(File child) {
         checkNotNull(baseDir);
-        URI uri = child.toURI();
-        String relative = baseDir.toURI().relativize(uri).getPath();
-        if (relative.equals(uri.toString())) {
+        String path = child.getAbsolutePath();
+        if (path.length() == basePrefix.length() - 1 && basePrefix.startsWith(path)) {
+            return "";
+        }
+        if (!path.startsWith(basePrefix)) {
             throw new IllegalArgumentException("Child path not in base");
         }
+        String relative = path.substring(basePrefix.length());
+        if (File.separatorChar != '/') {
+            relative = relative.replace(File.separatorChar, '/');
+        }
+        if (child.isDirectory() && !relative.endsWith("/")) {
+            relative += "/";
+        }
         return relative;
     }
 
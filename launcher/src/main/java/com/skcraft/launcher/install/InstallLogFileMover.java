@@ -7,6 +7,7 @@
 package com.skcraft.launcher.install;
 
 import com.skcraft.launcher.Launcher;
+import com.skcraft.launcher.ObjectStore;
 import lombok.NonNull;
 import lombok.extern.java.Log;
 
@@ -22,20 +23,77 @@ public class InstallLogFileMover implements InstallTask {
     private final InstallLog installLog;
     private final File from;
     private final File to;
+    private final String hash;
+    private final FileIndex fileIndex;
+    private final String path;
 
     public InstallLogFileMover(InstallLog installLog, @NonNull File from, @NonNull File to) {
+        this(installLog, from, to, null);
+    }
+
+    public InstallLogFileMover(InstallLog installLog, File from, @NonNull File to, String hash) {
+        this(installLog, from, to, hash, null, null);
+    }
+
+    /**
+     * Create a new task that installs a file through the launcher's
+     * {@link ObjectStore}.
+     *
+     * @param installLog the install log
+     * @param from the downloaded file, which must already have been checked against
+     *             the hash, or null if the object is already in the store
+     * @param to the destination file
+     * @param hash the SHA-1 hash of the file, or null to move the file directly
+     *             (which also happens if the store can't link the file)
+     * @param fileIndex the index to record the installed file in, so that it
+     *                  isn't hashed again on the next update, or null
+     * @param path the path of the file in the index
+     */
+    public InstallLogFileMover(InstallLog installLog, File from, @NonNull File to, String hash,
+                               FileIndex fileIndex, String path) {
+        if (from == null && hash == null) {
+            throw new IllegalArgumentException("Either a source file or a hash is required");
+        }
+
         this.installLog = installLog;
         this.from = from;
         this.to = to;
+        this.hash = hash;
+        this.fileIndex = fileIndex;
+        this.path = path;
     }
 
     @Override
     public void execute(Launcher launcher) throws IOException {
+        if (hash != null) {
+            ObjectStore objectStore = launcher.getObjectStore();
+
+            if (from == null || objectStore.canShare(to)) {
+                if (from != null) {
+                    // The downloader has already checked the file against the hash
+                    objectStore.put(from, hash, true);
+                }
+
+                InstallLogFileMover.log.log(Level.INFO, "Installing to {0} (from object {1})...", new Object[]{to.getAbsoluteFile(), hash});
+                objectStore.materialize(hash, to);
+                installLog.add(to, to);
+                addToIndex();
+                return;
+            }
+        }
+
         InstallLogFileMover.log.log(Level.INFO, "Installing to {0} (from {1})...", new Object[]{to.getAbsoluteFile(), from.getName()});
         to.getParentFile().mkdirs();
         to.delete();
         from.renameTo(to);
         installLog.add(to, to);
+        addToIndex();
+    }
+
+    private void addToIndex() {
+        if (fileIndex != null && hash != null) {
+            fileIndex.put(path, to, hash);
+        }
     }
 
     @Override
@@ -45,7 +103,7 @@ public class InstallLogFileMover implements InstallTask {
 
     @Override
     public String getStatus() {
-        return tr("installer.movingFile", from, to);
+        return tr("installer.movingFile", from != null ? from : hash, to);
     }
 
 }
@@ -6,18 +6,27 @@
 
 package com.skcraft.launcher.install;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.skcraft.concurrency.Callback;
 import com.skcraft.concurrency.ProgressObservable;
 import com.skcraft.launcher.Launcher;
 import com.skcraft.launcher.util.SharedLocale;
 import lombok.Getter;
 import lombok.NonNull;
+import lombok.Setter;
 import lombok.extern.java.Log;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.skcraft.launcher.LauncherUtils.checkInterrupted;
 import static com.skcraft.launcher.util.SharedLocale.tr;
@@ -27,11 +36,14 @@ public class Installer implements ProgressObservable {
 
     @Getter private final File tempDir;
     private final HttpDownloader downloader;
+    @Getter @Setter private boolean pipelined;
+    @Getter @Setter private int pipelineThreadCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
 
     private TaskQueue mainQueue = new TaskQueue();
     private TaskQueue lateQueue = new TaskQueue();
 
     private transient TaskQueue activeQueue;
+    private transient ListeningExecutorService pipeline;
 
     public Installer(@NonNull File tempDir) {
         this.tempDir = tempDir;
@@ -42,6 +54,20 @@ public class Installer implements ProgressObservable {
         mainQueue.queue(runnable);
     }
 
+    /**
+     * Queue a task that installs the given downloaded file.
+     *
+     * <p>Tasks queued for the same download are executed in order. In
+     * pipelined mode, they are started as soon as that download completes,
+     * rather than after every download has completed.</p>
+     *
+     * @param download the file returned by the {@link Downloader}
+     * @param runnable the task
+     */
+    public synchronized void queue(@NonNull File download, @NonNull InstallTask runnable) {
+        mainQueue.queue(download, runnable);
+    }
+
     public synchronized void queueLate(@NonNull InstallTask runnable) {
         lateQueue.queue(runnable);
     }
@@ -50,10 +76,54 @@ public class Installer implements ProgressObservable {
         downloader.execute();
     }
 
+    /**
+     * Download queued files and, if this installer is pipelined, execute the
+     * tasks for each file on a worker pool as soon as it has been downloaded.
+     *
+     * <p>{@link #execute(Launcher)} must still be called afterwards to wait for
+     * those tasks and to run the remaining ones.</p>
+     *
+     * @param launcher the launcher
+     * @throws IOException thrown on I/O error
+     * @throws InterruptedException thrown on interruption
+     */
+    public void download(@NonNull final Launcher launcher) throws IOException, InterruptedException {
+        if (!pipelined) {
+            download();
+            return;
+        }
+
+        final ListeningExecutorService pipeline = MoreExecutors.listeningDecorator(
+                Executors.newFixedThreadPool(pipelineThreadCount));
+        this.pipeline = pipeline;
+
+        downloader.setCompletionListener(new Callback<File>() {
+            @Override
+            public void handle(File file) {
+                mainQueue.dispatch(file, pipeline, launcher);
+            }
+        });
+
+        boolean successful = false;
+        try {
+            downloader.execute();
+            successful = true;
+        } finally {
+            downloader.setCompletionListener(null);
+            if (!successful) {
+                shutdownPipeline();
+            }
+        }
+    }
+
     public synchronized void execute(Launcher launcher) throws Exception {
         activeQueue = mainQueue;
-        mainQueue.execute(launcher);
-        activeQueue = null;
+        try {
+            mainQueue.execute(launcher);
+        } finally {
+            activeQueue = null;
+            shutdownPipeline();
+        }
     }
 
     public synchronized void executeLate(Launcher launcher) throws Exception {
@@ -66,22 +136,32 @@ public class Installer implements ProgressObservable {
         return downloader;
     }
 
+    private void shutdownPipeline() {
+        ListeningExecutorService pipeline = this.pipeline;
+        if (pipeline != null) {
+            pipeline.shutdownNow();
+            this.pipeline = null;
+        }
+    }
+
     @Override
     public double getProgress() {
+        TaskQueue activeQueue = this.activeQueue;
         if (activeQueue == null) return 0.0;
 
-        return activeQueue.finished / (double) activeQueue.count;
+        return activeQueue.finished.get() / (double) activeQueue.count;
     }
 
     @Override
     public String getStatus() {
-        if (activeQueue != null && activeQueue.running != null) {
-            InstallTask running = activeQueue.running;
+        TaskQueue activeQueue = this.activeQueue;
+        InstallTask running = activeQueue != null ? activeQueue.running : null;
+        if (running != null) {
             String status = running.getStatus();
             if (status == null) {
                 status = running.toString();
             }
-            return tr("installer.executing", activeQueue.count - activeQueue.finished) + "\n" + status;
+            return tr("installer.executing", activeQueue.count - activeQueue.finished.get()) + "\n" + status;
         } else {
             return SharedLocale.tr("installer.installing");
         }
@@ -89,29 +169,104 @@ public class Installer implements ProgressObservable {
 
     public static class TaskQueue {
         private List<InstallTask> queue = new ArrayList<InstallTask>();
+        private final Map<File, List<InstallTask>> pending = new HashMap<File, List<InstallTask>>();
+        private final List<ListenableFuture<?>> dispatched = new ArrayList<ListenableFuture<?>>();
+        private final Set<InstallTask> completed =
+                Collections.newSetFromMap(new ConcurrentHashMap<InstallTask, Boolean>());
 
         private int count = 0;
-        private int finished = 0;
-        private InstallTask running;
+        private final AtomicInteger finished = new AtomicInteger();
+        private volatile InstallTask running;
 
         public synchronized void queue(@NonNull InstallTask runnable) {
             queue.add(runnable);
             count++;
         }
 
+        public synchronized void queue(@NonNull File download, @NonNull InstallTask runnable) {
+            queue(runnable);
+
+            synchronized (pending) {
+                List<InstallTask> tasks = pending.get(download);
+                if (tasks == null) {
+                    tasks = new ArrayList<InstallTask>();
+                    pending.put(download, tasks);
+                }
+                tasks.add(runnable);
+            }
+        }
+
+        /**
+         * Start executing the tasks for the given download on an executor.
+         *
+         * @param download the downloaded file
+         * @param executor the executor
+         * @param launcher the launcher
+         */
+        public void dispatch(File download, ListeningExecutorService executor, final Launcher launcher) {
+            final List<InstallTask> tasks;
+            synchronized (pending) {
+                tasks = pending.remove(download);
+            }
+
+            if (tasks == null) {
+                return;
+            }
+
+            ListenableFuture<?> future = executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    for (InstallTask runnable : tasks) {
+                        checkInterrupted();
+                        execute(launcher, runnable);
+                    }
+                    return null;
+                }
+            });
+
+            synchronized (dispatched) {
+                dispatched.add(future);
+            }
+        }
+
         public synchronized void execute(Launcher launcher) throws Exception {
             queue = Collections.unmodifiableList(queue);
 
             try {
+                awaitDispatched();
+
                 for (InstallTask runnable : queue) {
-                    checkInterrupted();
-                    running = runnable;
-                    runnable.execute(launcher);
-                    finished++;
+                    if (!completed.contains(runnable)) {
+                        checkInterrupted();
+                        execute(launcher, runnable);
+                    }
                 }
             } finally {
                 running = null;
             }
         }
+
+        private void execute(Launcher launcher, InstallTask runnable) throws Exception {
+            running = runnable;
+            runnable.execute(launcher);
+            completed.add(runnable);
+            finished.incrementAndGet();
+        }
+
+        private void awaitDispatched() throws Exception {
+            List<ListenableFuture<?>> futures;
+            synchronized (dispatched) {
+                futures = new ArrayList<ListenableFuture<?>>(dispatched);
+            }
+
+            try {
+                Futures.allAsList(futures).get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
     }
 }
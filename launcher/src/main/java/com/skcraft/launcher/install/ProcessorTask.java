@@ -129,7 +129,7 @@ public class ProcessorTask implements InstallTask {
 					throw new RuntimeException(String.format("Artifact '%s' missing", output.getKey()));
 				}
 
-				if (!FileUtils.getShaHash(artifact).equals(output.getValue())) {
+				if (!FileUtils.getShaHash(artifact, true).equals(output.getValue())) {
 					log.warning("Invalid hash, expected " + output.getValue());
 					throw new RuntimeException(String.format("Artifact '%s' has invalid hash!", output.getKey()));
 				}
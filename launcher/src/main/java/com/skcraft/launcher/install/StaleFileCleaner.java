@@ -0,0 +1,207 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.skcraft.concurrency.ProgressObservable;
+import com.skcraft.launcher.persistence.Persistence;
+import lombok.Data;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static com.skcraft.launcher.util.SharedLocale.tr;
+
+/**
+ * Deletes the files that are no longer part of a package after an update,
+ * along with any directories that are left empty.
+ *
+ * <p>The files to delete are first written to a journal, which is only
+ * removed once every file has been deleted, so that a cleanup that was
+ * interrupted can be finished later with {@link #resume()}. Files that
+ * could not be deleted stay in the journal.</p>
+ */
+@Log
+public class StaleFileCleaner implements ProgressObservable {
+
+    private static final int BATCH_SIZE = 256;
+
+    private final File baseDir;
+    private final File journalPath;
+    @Getter @Setter
+    private int threadCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private volatile int total;
+    private final AtomicInteger processed = new AtomicInteger();
+
+    /**
+     * Create a new cleaner.
+     *
+     * @param baseDir the directory that the paths are relative to
+     * @param journalPath the path to the journal
+     */
+    public StaleFileCleaner(@NonNull File baseDir, @NonNull File journalPath) {
+        this.baseDir = baseDir;
+        this.journalPath = journalPath;
+    }
+
+    /**
+     * Finish a previous cleanup if it was interrupted.
+     *
+     * @throws InterruptedException thrown on interruption
+     */
+    public void resume() throws InterruptedException {
+        if (!journalPath.exists()) {
+            return;
+        }
+
+        Journal journal = Persistence.read(journalPath, Journal.class, true);
+        if (journal == null) {
+            journalPath.delete();
+            return;
+        }
+
+        log.info("Resuming removal of " + journal.getPaths().size() + " old file(s) in " + baseDir.getAbsolutePath());
+        delete(journal.getPaths());
+    }
+
+    /**
+     * Delete the given files.
+     *
+     * @param paths the paths, relative to the base directory
+     * @throws InterruptedException thrown on interruption
+     */
+    public void execute(@NonNull List<String> paths) throws InterruptedException {
+        if (paths.isEmpty()) {
+            return;
+        }
+
+        log.info("Removing " + paths.size() + " old file(s) from " + baseDir.getAbsolutePath());
+        writeJournal(paths);
+        delete(paths);
+    }
+
+    private void delete(List<String> paths) throws InterruptedException {
+        total = paths.size();
+        processed.set(0);
+
+        final Set<String> failed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final Set<File> parents = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < paths.size(); i += BATCH_SIZE) {
+            final List<String> batch = paths.subList(i, Math.min(paths.size(), i + BATCH_SIZE));
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    for (String path : batch) {
+                        File file = new File(baseDir, path);
+                        if (file.delete() || !file.exists()) {
+                            parents.add(file.getParentFile());
+                        } else {
+                            log.warning("Failed to delete " + file.getAbsolutePath());
+                            failed.add(path);
+                        }
+                        processed.incrementAndGet();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        boolean batchFailed = false;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            for (Future<Object> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    log.log(Level.WARNING, "Failed to remove old files from " + baseDir.getAbsolutePath(), e.getCause());
+                    batchFailed = true;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        pruneEmptyDirectories(parents);
+
+        if (batchFailed) {
+            // It's not known which files of the batch were deleted, so keep the whole journal
+            return;
+        } else if (failed.isEmpty()) {
+            journalPath.delete();
+        } else {
+            List<String> remaining = new ArrayList<String>(failed);
+            Collections.sort(remaining);
+            writeJournal(remaining);
+        }
+    }
+
+    /**
+     * Delete the given directories and their parents, up to the base
+     * directory, for as long as they are empty.
+     *
+     * @param dirs the directories
+     */
+    private void pruneEmptyDirectories(Set<File> dirs) {
+        String basePath = baseDir.getAbsolutePath() + File.separator;
+        Set<File> deleted = new HashSet<File>();
+
+        for (File dir : dirs) {
+            // Deleting a directory that is not empty fails, so there is no need to list it
+            while (dir != null && dir.getAbsolutePath().startsWith(basePath) && !deleted.contains(dir)) {
+                if (!dir.delete()) {
+                    break;
+                }
+                deleted.add(dir);
+                dir = dir.getParentFile();
+            }
+        }
+    }
+
+    private void writeJournal(List<String> paths) {
+        Journal journal = new Journal();
+        journal.setPaths(paths);
+        try {
+            Persistence.write(journalPath, journal);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to write " + journalPath.getAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public double getProgress() {
+        int total = this.total;
+        if (total == 0) {
+            return -1;
+        }
+        return processed.get() / (double) total;
+    }
+
+    @Override
+    public String getStatus() {
+        return tr("installer.removingFiles", total - processed.get());
+    }
+
+    /**
+     * The files that remain to be deleted.
+     */
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Journal {
+        private List<String> paths = new ArrayList<String>();
+    }
+
+}
@@ -6,6 +6,7 @@
 
 package com.skcraft.launcher.install;
 
+import com.skcraft.launcher.persistence.Binary;
 import lombok.Data;
 import lombok.NonNull;
 
@@ -13,6 +14,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 @Data
+@Binary
 public class UpdateCache {
 
     private Map<String, String> cache = new HashMap<String, String>();
@@ -6,28 +6,32 @@
 
 package com.skcraft.launcher.install;
 
-import com.google.common.io.ByteSource;
 import com.google.common.io.Closer;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.Setter;
-import org.apache.commons.io.IOUtils;
 
 import java.io.*;
-import java.util.List;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-
-import static org.apache.commons.io.IOUtils.closeQuietly;
+import java.util.zip.ZipFile;
 
+/**
+ * Extracts a .zip file, reading only the entries that are not excluded.
+ */
 public class ZipExtract implements Runnable {
 
-    @Getter private final ByteSource source;
+    @Getter private final File source;
     @Getter private final File destination;
     @Getter @Setter
     private List<String> exclude;
+    @Getter @Setter
+    private int threadCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
 
-    public ZipExtract(@NonNull ByteSource source, @NonNull File destination) {
+    public ZipExtract(@NonNull File source, @NonNull File destination) {
         this.source = source;
         this.destination = destination;
     }
@@ -37,22 +41,38 @@ public class ZipExtract implements Runnable {
         Closer closer = Closer.create();
 
         try {
-            InputStream is = closer.register(source.openBufferedStream());
-            ZipInputStream zis = closer.register(new ZipInputStream(is));
-            ZipEntry entry;
+            final ZipFile zip = closer.register(new ZipFile(source));
+            List<ZipEntry> pending = new ArrayList<ZipEntry>();
+            Set<File> dirs = new HashSet<File>();
 
-            destination.getParentFile().mkdirs();
+            destination.mkdirs();
 
-            while ((entry = zis.getNextEntry()) != null) {
+            // The central directory lists every entry, so excluded entries are never read
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
                 if (matches(entry)) {
                     File file = new File(getDestination(), entry.getName());
                     if (entry.isDirectory()) {
-                        file.mkdirs();
+                        if (dirs.add(file)) {
+                            file.mkdirs();
+                        }
                     } else {
-                        writeEntry(zis, file);
+                        if (dirs.add(file.getParentFile())) {
+                            file.getParentFile().mkdirs();
+                        }
+                        pending.add(entry);
                     }
                 }
             }
+
+            if (threadCount <= 1 || pending.size() <= 1) {
+                for (ZipEntry entry : pending) {
+                    writeEntry(zip, entry);
+                }
+            } else {
+                writeEntries(zip, pending);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
@@ -63,6 +83,37 @@ public class ZipExtract implements Runnable {
         }
     }
 
+    private void writeEntries(final ZipFile zip, List<ZipEntry> pending) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, pending.size()));
+
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final ZipEntry entry : pending) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws IOException {
+                        writeEntry(zip, entry);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Extraction of " + source.getName() + " was interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to extract " + source.getName(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * Checks if the given entry should be extracted.
      *
@@ -81,19 +132,14 @@ public class ZipExtract implements Runnable {
         return true;
     }
 
-    private void writeEntry(ZipInputStream zis, File path) throws IOException {
-        FileOutputStream fos = null;
-        BufferedOutputStream bos = null;
+    private void writeEntry(ZipFile zip, ZipEntry entry) throws IOException {
+        File path = new File(getDestination(), entry.getName());
+        InputStream is = zip.getInputStream(entry);
 
         try {
-            path.getParentFile().mkdirs();
-
-            fos = new FileOutputStream(path);
-            bos = new BufferedOutputStream(fos);
-            IOUtils.copy(zis, bos);
+            Files.copy(is, path.toPath(), StandardCopyOption.REPLACE_EXISTING);
         } finally {
-            closeQuietly(bos);
-            closeQuietly(fos);
+            is.close();
         }
     }
 
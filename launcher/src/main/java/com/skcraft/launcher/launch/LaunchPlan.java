@@ -0,0 +1,48 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.launch;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.skcraft.launcher.NativesCache;
+import com.skcraft.launcher.model.minecraft.JavaVersion;
+import lombok.Data;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of preparing an instance for launch, which is stored so that
+ * later launches do not have to read the manifests and evaluate their rules
+ * again as long as the key still matches.
+ *
+ * <p>The command is stored with the session variables (such as
+ * <code>${auth_access_token}</code>) and the proxy password left in place,
+ * so that no credentials are written to disk and the plan can be used with
+ * any account.</p>
+ */
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class LaunchPlan {
+
+    /**
+     * The version of the format, which is part of the key so that plans
+     * written by older versions of the launcher are not used.
+     */
+    public static final int FORMAT_VERSION = 2;
+
+    private String key;
+    private List<String> command = new ArrayList<String>();
+    private List<File> requiredFiles = new ArrayList<File>();
+    private List<NativesCache.Entry> natives = new ArrayList<NativesCache.Entry>();
+    private File nativesDir;
+    private String assetsIndexId;
+    private boolean assetsTreeRequired;
+    private Integer runtimeMajorVersion;
+    private JavaVersion javaVersion;
+
+}
@@ -26,18 +26,14 @@ import com.skcraft.launcher.util.SharedLocale;
 import com.skcraft.launcher.util.SwingExecutor;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.java.Log;
-import org.apache.commons.io.FileUtils;
 
 import javax.annotation.Nullable;
 import javax.swing.*;
 import java.awt.*;
-import java.io.File;
-import java.io.IOException;
 import java.util.Date;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.function.BiPredicate;
-import java.util.logging.Level;
 
 import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
 import static com.skcraft.launcher.util.SharedLocale.tr;
@@ -124,10 +120,8 @@ public class LaunchSupervisor {
     }
 
     private void launch(Window window, Instance instance, Session session, final LaunchListener listener) {
-        final File extractDir = launcher.createExtractDir();
-
         // Get the process
-        Runner task = new Runner(launcher, instance, session, extractDir, new RuntimeVerifier(instance));
+        final Runner task = new Runner(launcher, instance, session, new RuntimeVerifier(instance));
         ObservableFuture<Process> processFuture = new ObservableFuture<Process>(
                 launcher.getExecutor().submit(task), task);
 
@@ -154,12 +148,8 @@ public class LaunchSupervisor {
 
         // Clean up at the very end
         future.addListener(() -> {
-            try {
-                log.info("Process ended; cleaning up " + extractDir.getAbsolutePath());
-                FileUtils.deleteDirectory(extractDir);
-            } catch (IOException e) {
-                log.log(Level.WARNING, "Failed to clean up " + extractDir.getAbsolutePath(), e);
-            }
+            log.info("Process ended; releasing natives");
+            task.release();
         }, sameThreadExecutor());
 
         // Hook up launch listener
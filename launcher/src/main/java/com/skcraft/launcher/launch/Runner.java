@@ -8,19 +8,21 @@ package com.skcraft.launcher.launch;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.Files;
+import com.google.common.hash.Hashing;
 import com.skcraft.concurrency.DefaultProgress;
 import com.skcraft.concurrency.ProgressObservable;
 import com.skcraft.launcher.*;
 import com.skcraft.launcher.auth.Session;
-import com.skcraft.launcher.install.ZipExtract;
+import com.skcraft.launcher.install.StaleFileCleaner;
 import com.skcraft.launcher.launch.runtime.JavaRuntime;
 import com.skcraft.launcher.launch.runtime.JavaRuntimeFinder;
 import com.skcraft.launcher.model.minecraft.*;
 import com.skcraft.launcher.persistence.Persistence;
 import com.skcraft.launcher.util.Environment;
+import com.skcraft.launcher.util.FileUtils;
 import com.skcraft.launcher.util.Platform;
 import com.skcraft.launcher.util.SharedLocale;
 import lombok.Getter;
@@ -32,13 +34,16 @@ import org.apache.commons.lang.text.StrSubstitutor;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.function.BiPredicate;
+import java.util.logging.Level;
 
 import static com.skcraft.launcher.LauncherUtils.checkInterrupted;
 import static com.skcraft.launcher.util.SharedLocale.tr;
@@ -55,33 +60,32 @@ public class Runner implements Callable<Process>, ProgressObservable {
     private final Launcher launcher;
     private final Instance instance;
     private final Session session;
-    private final File extractDir;
     private final BiPredicate<JavaRuntime, JavaVersion> javaRuntimeMismatch;
     @Getter @Setter private Environment environment = Environment.getInstance();
 
     private VersionManifest versionManifest;
-    private AssetsIndex assetsIndex;
+    private AssetsIndexTable assetsIndex;
     private File virtualAssetsDir;
     private Configuration config;
     private JavaProcessBuilder builder;
     private AssetsRoot assetsRoot;
     private FeatureList.Mutable featureList;
+    private File extractDir;
+    private LaunchPlan plan;
 
     /**
      * Create a new instance launcher.
      *  @param launcher the launcher
      * @param instance the instance
      * @param session the session
-     * @param extractDir the directory to extract to
      * @param javaRuntimeMismatch
      */
     public Runner(@NonNull Launcher launcher, @NonNull Instance instance,
-                  @NonNull Session session, @NonNull File extractDir,
+                  @NonNull Session session,
                   BiPredicate<JavaRuntime, JavaVersion> javaRuntimeMismatch) {
         this.launcher = launcher;
         this.instance = instance;
         this.session = session;
-        this.extractDir = extractDir;
         this.javaRuntimeMismatch = javaRuntimeMismatch;
         this.featureList = new FeatureList.Mutable();
     }
@@ -105,17 +109,170 @@ public class Runner implements Callable<Process>, ProgressObservable {
             throw new LauncherException("Update required", SharedLocale.tr("runner.updateRequired"));
         }
 
+        // Finish removing old files if the last update was interrupted while doing so
+        StaleFileCleaner cleaner = new StaleFileCleaner(instance.getContentDir(), instance.getCleanupJournalPath());
+        progress = cleaner;
+        cleaner.resume();
+
         config = launcher.getConfig();
-        builder = new JavaProcessBuilder();
         assetsRoot = launcher.getAssets();
 
+        // Reuse the stored launch plan if nothing that went into it has changed
+        File planPath = getLaunchPlanPath();
+        LaunchPlan plan = Persistence.read(planPath, LaunchPlan.class, true);
+        if (plan == null || !getLaunchPlanKey(plan.getJavaVersion()).equals(plan.getKey()) || !prepareFromPlan(plan)) {
+            plan = createLaunchPlan();
+            plan.setKey(getLaunchPlanKey(plan.getJavaVersion()));
+            try {
+                Persistence.write(planPath, plan);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to write launch plan to " + planPath.getAbsolutePath(), e);
+            }
+        }
+
+        if (!launcher.getConfig().isDisableRuntimeWarning())
+        {
+            verifyJavaRuntime(plan);
+        }
+
+        // Only the session is filled in on every launch
+        StrSubstitutor substitutor = new StrSubstitutor(getSessionSubstitutions());
+        substitutor.setEscapeChar('\0');
+        List<String> command = new ArrayList<String>();
+        for (String arg : plan.getCommand()) {
+            command.add(substitutor.replace(arg));
+        }
+
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.directory(instance.getContentDir());
+        Runner.log.info("Launching: " + plan.getCommand());
+        checkInterrupted();
+
+        progress = new DefaultProgress(1, SharedLocale.tr("runner.startingJava"));
+
+        return processBuilder.start();
+    }
+
+    /**
+     * Get the path to the stored launch plan.
+     *
+     * @return the file, which may not exist
+     */
+    private File getLaunchPlanPath() {
+        return new File(instance.getDir(), "launch_plan.json");
+    }
+
+    /**
+     * Get the key of the launch plan, which is a hash of everything that
+     * goes into the plan other than the session and the proxy password.
+     *
+     * <p>The Java version that the game needs comes from the version
+     * manifest, whose hash is part of the key, so the version stored in
+     * a plan can be used to find the runtime that would be picked now.</p>
+     *
+     * @param javaVersion the Java version that the game needs, or null
+     * @return the key
+     * @throws IOException on I/O error
+     */
+    private String getLaunchPlanKey(JavaVersion javaVersion) throws IOException {
+        Map<String, Object> inputs = new LinkedHashMap<String, Object>();
+        inputs.put("format", LaunchPlan.FORMAT_VERSION);
+        inputs.put("version", hashIfExists(instance.getVersionPath()));
+        inputs.put("manifest", hashIfExists(instance.getManifestPath()));
+        inputs.put("customJar", instance.getCustomJarPath().exists());
+        inputs.put("launchModifier", instance.getLaunchModifier());
+        inputs.put("settings", instance.getSettings());
+        inputs.put("platform", environment.getPlatform());
+        inputs.put("arch", environment.getArch());
+        inputs.put("launcherTitle", launcher.getTitle());
+        inputs.put("launcherVersion", launcher.getVersion());
+        inputs.put("launcherShortname", launcher.getProperties().getProperty("launcherShortname"));
+        inputs.put("baseDir", launcher.getBaseDir().getAbsolutePath());
+        inputs.put("librariesDir", launcher.getLibrariesDir().getAbsolutePath());
+        inputs.put("javaRuntime", config.getJavaRuntime());
+        inputs.put("forceSelectedJavaRuntime", config.isForceSelectedJavaRuntime());
+        // The runtime found on this system may change without any setting changing
+        JavaRuntime runtime = resolveJavaRuntime(javaVersion);
+        inputs.put("runtimePath", runtime != null ? runtime.getDir().getAbsolutePath() : null);
+        inputs.put("runtimeVersion", runtime != null ? runtime.getVersion() : null);
+        inputs.put("useInstanceJVMSettings", config.isUseInstanceJVMSettings());
+        inputs.put("jvmArgs", config.getJvmArgs());
+        inputs.put("minMemory", config.getMinMemory());
+        inputs.put("maxMemory", config.getMaxMemory());
+        inputs.put("permGen", config.getPermGen());
+        inputs.put("windowWidth", config.getWindowWidth());
+        inputs.put("windowHeight", config.getWindowHeight());
+        inputs.put("proxyEnabled", config.isProxyEnabled());
+        inputs.put("proxyHost", config.getProxyHost());
+        inputs.put("proxyPort", config.getProxyPort());
+        inputs.put("proxyUsername", config.getProxyUsername());
+        inputs.put("serverEnabled", config.isServerEnabled());
+        inputs.put("serverHost", config.getServerHost());
+        inputs.put("serverPort", config.getServerPort());
+
+        return Hashing.sha1().hashString(Persistence.writeValueAsString(inputs, null), Charsets.UTF_8).toString();
+    }
+
+    private static String hashIfExists(File file) throws IOException {
+        return file.exists() ? FileUtils.getShaHash(file) : null;
+    }
+
+    /**
+     * Prepare the files that a stored launch plan needs.
+     *
+     * @param plan the launch plan
+     * @return false if the plan is out of date
+     * @throws Exception on error
+     */
+    private boolean prepareFromPlan(LaunchPlan plan) throws Exception {
+        for (File file : plan.getRequiredFiles()) {
+            if (!file.exists()) {
+                return false;
+            }
+        }
+
+        // The Java binary is either "java" from the PATH or in the bin directory of a runtime
+        if (plan.getCommand().isEmpty()) {
+            return false;
+        }
+        File javaBinDir = new File(plan.getCommand().get(0)).getParentFile();
+        if (javaBinDir != null && !javaBinDir.isDirectory()) {
+            return false;
+        }
+
+        progress = new DefaultProgress(0.9, SharedLocale.tr("runner.extractingNatives"));
+        File dir = launcher.getNativesCache().acquire(plan.getNatives());
+        synchronized (this) {
+            extractDir = dir;
+        }
+        if (!dir.equals(plan.getNativesDir())) {
+            // A library without a known hash has changed
+            release();
+            return false;
+        }
+
+        buildAssetsTree(plan.getAssetsIndexId(), plan.isAssetsTreeRequired());
+
+        return true;
+    }
+
+    /**
+     * Read the manifests and prepare a new launch plan.
+     *
+     * @return the launch plan, without its key
+     * @throws Exception on error
+     */
+    private LaunchPlan createLaunchPlan() throws Exception {
+        plan = new LaunchPlan();
+        builder = new JavaProcessBuilder();
+
         // Load manifiests
         versionManifest = mapper.readValue(instance.getVersionPath(), VersionManifest.class);
 
-        // Load assets index
+        // Load assets index, which is only read in full if the tree has to be built
         File assetsFile = assetsRoot.getIndexPath(versionManifest);
         try {
-            assetsIndex = mapper.readValue(assetsFile, AssetsIndex.class);
+            assetsIndex = AssetsIndexTable.read(assetsFile);
         } catch (FileNotFoundException e) {
             instance.setInstalled(false);
             Persistence.commitAndForget(instance);
@@ -128,16 +285,9 @@ public class Runner implements Callable<Process>, ProgressObservable {
                     tr("runner.corruptAssetsIndex", instance.getTitle(), assetsFile.getAbsolutePath()));
         }
 
-        // Copy over assets to the tree
-        try {
-            AssetsRoot.AssetsTreeBuilder assetsBuilder = assetsRoot.createAssetsBuilder(versionManifest);
-            progress = assetsBuilder;
-            virtualAssetsDir = assetsBuilder.build();
-        } catch (LauncherException e) {
-            instance.setInstalled(false);
-            Persistence.commitAndForget(instance);
-            throw e;
-        }
+        plan.setAssetsIndexId(versionManifest.getAssetId());
+        plan.setAssetsTreeRequired(assetsIndex.isTreeRequired());
+        buildAssetsTree(plan.getAssetsIndexId(), plan.isAssetsTreeRequired());
 
         progress = new DefaultProgress(0.9, SharedLocale.tr("runner.collectingArgs"));
         builder.setMainClass(versionManifest.getMainClass());
@@ -153,19 +303,43 @@ public class Runner implements Callable<Process>, ProgressObservable {
 
         callLaunchModifier();
 
-        if (!launcher.getConfig().isDisableRuntimeWarning())
-        {
-            verifyJavaRuntime();
+        plan.setCommand(builder.buildCommand());
+        plan.setNativesDir(extractDir);
+        plan.setJavaVersion(versionManifest.getJavaVersion());
+        if (builder.getRuntime() != null) {
+            plan.setRuntimeMajorVersion(builder.getRuntime().getMajorVersion());
         }
 
-        ProcessBuilder processBuilder = new ProcessBuilder(builder.buildCommand());
-        processBuilder.directory(instance.getContentDir());
-        Runner.log.info("Launching: " + builder);
-        checkInterrupted();
-
-        progress = new DefaultProgress(1, SharedLocale.tr("runner.startingJava"));
+        return plan;
+    }
 
-        return processBuilder.start();
+    /**
+     * Copy over assets to the tree, which only legacy versions read from.
+     *
+     * @param indexId the asset index ID
+     * @param treeRequired true if the version needs the tree
+     * @throws Exception on error
+     */
+    private void buildAssetsTree(String indexId, boolean treeRequired) throws Exception {
+        if (treeRequired) {
+            try {
+                AssetsRoot.AssetsTreeBuilder assetsBuilder = assetsRoot.createAssetsBuilder(indexId);
+                progress = assetsBuilder;
+                virtualAssetsDir = assetsBuilder.build();
+            } catch (LauncherException e) {
+                instance.setInstalled(false);
+                Persistence.commitAndForget(instance);
+                throw e;
+            }
+        } else {
+            virtualAssetsDir = assetsRoot.getDir();
+            launcher.getExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    assetsRoot.removeStaleTrees();
+                }
+            });
+        }
     }
 
     /**
@@ -175,15 +349,23 @@ public class Runner implements Callable<Process>, ProgressObservable {
         instance.modify(builder);
     }
 
-    private void verifyJavaRuntime() {
-        JavaRuntime pickedRuntime = builder.getRuntime();
-        JavaVersion targetVersion = versionManifest.getJavaVersion();
+    private void verifyJavaRuntime(LaunchPlan plan) {
+        Integer pickedVersion = plan.getRuntimeMajorVersion();
+        JavaVersion targetVersion = plan.getJavaVersion();
 
-        if (pickedRuntime == null || targetVersion == null) {
+        if (pickedVersion == null || targetVersion == null) {
             return;
         }
 
-        if (pickedRuntime.getMajorVersion() != targetVersion.getMajorVersion()) {
+        if (pickedVersion != targetVersion.getMajorVersion()) {
+            JavaRuntime pickedRuntime = builder != null ? builder.getRuntime() : null;
+            if (pickedRuntime == null) {
+                File javaBinDir = new File(plan.getCommand().get(0)).getParentFile();
+                pickedRuntime = javaBinDir != null ? JavaRuntimeFinder.getRuntimeFromPath(javaBinDir) : null;
+            }
+            if (pickedRuntime == null) {
+                return;
+            }
             boolean launchAnyway = javaRuntimeMismatch.test(pickedRuntime, targetVersion);
 
             if (!launchAnyway) {
@@ -206,10 +388,23 @@ public class Runner implements Callable<Process>, ProgressObservable {
         }
     }
 
+    /**
+     * Release the natives directory used by the game, which must be called
+     * once the game has exited or failed to launch.
+     */
+    public synchronized void release() {
+        if (extractDir != null) {
+            launcher.getNativesCache().release(extractDir);
+            extractDir = null;
+        }
+    }
+
     /**
      * Add libraries.
      */
-    private void addLibraries() throws LauncherException {
+    private void addLibraries() throws LauncherException, IOException {
+        List<NativesCache.Entry> natives = plan.getNatives();
+
         // Add libraries to classpath or extract the libraries as necessary
         for (Library library : versionManifest.getLibraries()) {
             if (!library.matches(environment)) {
@@ -219,11 +414,11 @@ public class Runner implements Callable<Process>, ProgressObservable {
             File path = new File(launcher.getLibrariesDir(), library.getPath(environment));
 
             if (path.exists()) {
+                plan.getRequiredFiles().add(path);
                 Library.Extract extract = library.getExtract();
                 if (extract != null) {
-                    ZipExtract zipExtract = new ZipExtract(Files.asByteSource(path), extractDir);
-                    zipExtract.setExclude(extract.getExclude());
-                    zipExtract.run();
+                    Library.Artifact artifact = library.getArtifact(environment);
+                    natives.add(new NativesCache.Entry(artifact.getPath(), artifact.getSha1(), path, extract.getExclude()));
                 } else {
                     builder.classPath(path);
                 }
@@ -237,6 +432,13 @@ public class Runner implements Callable<Process>, ProgressObservable {
 
         // The official launcher puts the vanilla jar at the end of the classpath, we'll do the same
         builder.classPath(getJarPath());
+        plan.getRequiredFiles().add(getJarPath());
+
+        progress = new DefaultProgress(0.9, SharedLocale.tr("runner.extractingNatives"));
+        File dir = launcher.getNativesCache().acquire(natives);
+        synchronized (this) {
+            extractDir = dir;
+        }
     }
 
     /**
@@ -284,19 +486,8 @@ public class Runner implements Callable<Process>, ProgressObservable {
         builder.setMaxMemory(maxMemory);
         builder.setPermGen(permGen);
 
-        JavaRuntime selectedRuntime;
-        if (config.getJavaRuntime() != null && config.isForceSelectedJavaRuntime()) {
-           selectedRuntime = config.getJavaRuntime();
-        } else {
-            selectedRuntime = Optional.ofNullable(instance.getSettings().getRuntime())
-                    .orElseGet(() -> Optional.ofNullable(versionManifest.getJavaVersion())
-                            .flatMap(JavaRuntimeFinder::findBestJavaRuntime)
-                            .orElse(config.getJavaRuntime())
-                    );
-        }
-
         // Builder defaults to the PATH `java` if the runtime is null
-        builder.setRuntime(selectedRuntime);
+        builder.setRuntime(resolveJavaRuntime(versionManifest.getJavaVersion()));
 
         List<String> flags = builder.getFlags();
         String[] rawJvmArgsList = new String[] {
@@ -331,6 +522,24 @@ public class Runner implements Callable<Process>, ProgressObservable {
         }
     }
 
+    /**
+     * Pick the Java runtime to launch the game with.
+     *
+     * @param javaVersion the Java version that the game needs, or null
+     * @return the runtime, or null to use <code>java</code> from the PATH
+     */
+    private JavaRuntime resolveJavaRuntime(JavaVersion javaVersion) {
+        if (config.getJavaRuntime() != null && config.isForceSelectedJavaRuntime()) {
+            return config.getJavaRuntime();
+        } else {
+            return Optional.ofNullable(instance.getSettings().getRuntime())
+                    .orElseGet(() -> Optional.ofNullable(javaVersion)
+                            .flatMap(JavaRuntimeFinder::findBestJavaRuntime)
+                            .orElse(config.getJavaRuntime())
+                    );
+        }
+    }
+
     /**
      * Add arguments for the application.
      *
@@ -360,7 +569,6 @@ public class Runner implements Callable<Process>, ProgressObservable {
             String host = config.getProxyHost();
             int port = config.getProxyPort();
             String username = config.getProxyUsername();
-            String password = config.getProxyPassword();
 
             if (!Strings.isNullOrEmpty(host) && port > 0 && port < 65535) {
                 args.add("--proxyHost");
@@ -372,7 +580,8 @@ public class Runner implements Callable<Process>, ProgressObservable {
                     builder.getArgs().add("--proxyUser");
                     builder.getArgs().add(username);
                     builder.getArgs().add("--proxyPass");
-                    builder.getArgs().add(password);
+                    // Filled in on every launch, so that it is not written to the launch plan
+                    builder.getArgs().add("${proxy_password}");
                 }
             }
         }
@@ -452,15 +661,6 @@ public class Runner implements Callable<Process>, ProgressObservable {
         map.put("version_name", versionManifest.getId());
         map.put("version_type", launcher.getProperties().getProperty("launcherShortname"));
 
-        map.put("auth_access_token", session.getAccessToken());
-        map.put("auth_session", session.getSessionToken());
-        map.put("auth_player_name", session.getName());
-        map.put("auth_uuid", session.getUuid());
-
-        map.put("profile_name", session.getName());
-        map.put("user_type", session.getUserType().getId());
-        map.put("user_properties", mapper.writeValueAsString(session.getUserProperties()));
-
         map.put("game_directory", instance.getContentDir().getAbsolutePath());
         map.put("game_assets", virtualAssetsDir.getAbsolutePath());
         map.put("assets_root", launcher.getAssets().getDir().getAbsolutePath());
@@ -481,6 +681,30 @@ public class Runner implements Callable<Process>, ProgressObservable {
         return map;
     }
 
+    /**
+     * Build the list of substitutions for the session and the proxy password,
+     * which are left in place in the launch plan.
+     *
+     * @return the map of substitutions
+     * @throws JsonProcessingException on error
+     */
+    private Map<String, String> getSessionSubstitutions() throws JsonProcessingException {
+        Map<String, String> map = new HashMap<String, String>();
+
+        map.put("auth_access_token", session.getAccessToken());
+        map.put("auth_session", session.getSessionToken());
+        map.put("auth_player_name", session.getName());
+        map.put("auth_uuid", session.getUuid());
+
+        map.put("profile_name", session.getName());
+        map.put("user_type", session.getUserType().getId());
+        map.put("user_properties", mapper.writeValueAsString(session.getUserProperties()));
+
+        map.put("proxy_password", Strings.nullToEmpty(config.getProxyPassword()));
+
+        return map;
+    }
+
     @Override
     public double getProgress() {
         return progress.getProgress();
@@ -6,7 +6,9 @@
 
 package com.skcraft.launcher.model.minecraft;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.skcraft.launcher.AssetsRoot;
 import lombok.Data;
 import lombok.NonNull;
@@ -19,8 +21,22 @@ import java.util.Map;
 public class AssetsIndex {
 
     private boolean virtual;
+    @JsonProperty("map_to_resources")
+    private boolean mapToResources;
     private Map<String, Asset> objects;
 
+    /**
+     * Check whether the game expects the assets to be laid out under their
+     * real names, which legacy versions do, rather than reading them from
+     * the objects directory.
+     *
+     * @return true if a virtual assets tree is needed
+     */
+    @JsonIgnore
+    public boolean isTreeRequired() {
+        return virtual || mapToResources;
+    }
+
     public File getObjectPath(@NonNull AssetsRoot assetsRoot, @NonNull String name) {
         Asset asset = objects.get(name);
         if (asset != null) {
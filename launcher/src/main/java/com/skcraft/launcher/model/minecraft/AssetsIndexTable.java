@@ -0,0 +1,191 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.model.minecraft;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.io.BaseEncoding;
+import com.skcraft.launcher.AssetsRoot;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A compact, read-only view of an assets index, holding only the names of
+ * the objects (sorted, for binary search) and their hashes as raw bytes.
+ *
+ * <p>This is read by streaming through the index rather than creating an
+ * {@link AssetsIndex} with an {@link Asset} for each of the thousands
+ * of objects, for callers that only need the flags of the index or
+ * to look up a handful of objects.</p>
+ */
+public class AssetsIndexTable {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final int HASH_LENGTH = 20;
+
+    @Getter private final boolean virtual;
+    @Getter private final boolean mapToResources;
+    private final String[] names;
+    private final byte[] hashes;
+
+    private AssetsIndexTable(boolean virtual, boolean mapToResources, String[] names, byte[] hashes) {
+        this.virtual = virtual;
+        this.mapToResources = mapToResources;
+        this.names = names;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Check whether the game expects the assets to be laid out under their
+     * real names.
+     *
+     * @return true if a virtual assets tree is needed
+     * @see AssetsIndex#isTreeRequired()
+     */
+    public boolean isTreeRequired() {
+        return virtual || mapToResources;
+    }
+
+    /**
+     * Get the number of objects in the index.
+     *
+     * @return the number of objects
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Get the hash of the object with the given name.
+     *
+     * @param name the name, such as "icons/minecraft.icns"
+     * @return the hash, or null if the index has no such object
+     */
+    public String getHash(@NonNull String name) {
+        int index = Arrays.binarySearch(names, name);
+        if (index < 0) {
+            return null;
+        }
+        return BaseEncoding.base16().lowerCase().encode(hashes, index * HASH_LENGTH, HASH_LENGTH);
+    }
+
+    /**
+     * Get the local path of the object with the given name.
+     *
+     * @param assetsRoot the assets root
+     * @param name the name, such as "icons/minecraft.icns"
+     * @return the file, or null if the index has no such object
+     */
+    public File getObjectPath(@NonNull AssetsRoot assetsRoot, @NonNull String name) {
+        String hash = getHash(name);
+        if (hash != null) {
+            return assetsRoot.getObjectPath(hash);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Read an assets index.
+     *
+     * @param file the index file
+     * @return the table
+     * @throws IOException on I/O error, or if the index is corrupt
+     */
+    public static AssetsIndexTable read(@NonNull File file) throws IOException {
+        boolean virtual = false;
+        boolean mapToResources = false;
+        final List<String> names = new ArrayList<String>();
+        final List<byte[]> hashes = new ArrayList<byte[]>();
+
+        JsonParser parser = jsonFactory.createParser(file);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected an object in " + file.getAbsolutePath());
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+
+                if (field.equals("virtual")) {
+                    virtual = token == JsonToken.VALUE_TRUE;
+                } else if (field.equals("map_to_resources")) {
+                    mapToResources = token == JsonToken.VALUE_TRUE;
+                } else if (field.equals("objects") && token == JsonToken.START_OBJECT) {
+                    readObjects(parser, names, hashes);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid hash in " + file.getAbsolutePath(), e);
+        } finally {
+            parser.close();
+        }
+
+        // Sort the names, keeping each hash at the same position as its name
+        Integer[] order = new Integer[names.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return names.get(o1).compareTo(names.get(o2));
+            }
+        });
+
+        String[] sortedNames = new String[order.length];
+        byte[] sortedHashes = new byte[order.length * HASH_LENGTH];
+        for (int i = 0; i < order.length; i++) {
+            sortedNames[i] = names.get(order[i]);
+            System.arraycopy(hashes.get(order[i]), 0, sortedHashes, i * HASH_LENGTH, HASH_LENGTH);
+        }
+
+        return new AssetsIndexTable(virtual, mapToResources, sortedNames, sortedHashes);
+    }
+
+    private static void readObjects(JsonParser parser, List<String> names, List<byte[]> hashes) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+
+            String hash = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if (field.equals("hash")) {
+                    hash = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+
+            if (hash != null) {
+                byte[] bytes = BaseEncoding.base16().lowerCase().decode(hash.toLowerCase());
+                if (bytes.length != HASH_LENGTH) {
+                    throw new IOException("Invalid hash for " + name);
+                }
+                names.add(name);
+                hashes.add(bytes);
+            }
+        }
+    }
+
+}
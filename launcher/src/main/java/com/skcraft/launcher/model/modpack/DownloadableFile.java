@@ -22,7 +22,7 @@ public class DownloadableFile {
 	public LocalFile download(@NonNull Installer installer, Manifest manifest) throws MalformedURLException {
 		URL url = concat(manifest.getObjectsUrl(), getLocation());
 
-		File local = installer.getDownloader().download(url, hash, size, name);
+		File local = installer.getDownloader().download(url, hash, size, name, hash);
 		return new LocalFile(local, name);
 	}
 
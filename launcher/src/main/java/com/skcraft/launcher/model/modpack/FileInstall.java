@@ -10,6 +10,7 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
+import com.skcraft.launcher.ObjectStore;
 import com.skcraft.launcher.install.*;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
@@ -57,20 +58,32 @@ public class FileInstall extends ManifestEntry {
         String fileVersion = getImpliedVersion();
         URL url = concat(getManifest().getObjectsUrl(), getLocation());
 
-        if (shouldUpdate(cache, targetFile)) {
+        if (shouldUpdate(cache, extras.getFileIndex(), targetFile)) {
+            ObjectStore objectStore = extras.getObjectStore();
+            FileIndex fileIndex = extras.getFileIndex();
+            String path = FilenameUtils.normalize(targetPath);
+            // User files are edited by the player, so they never share an object
+            String objectHash = isUserFile() ? null : hash;
+
+            if (objectHash != null && objectStore.contains(objectHash)) {
+                // Another instance already has this file
+                installer.queue(new InstallLogFileMover(log, null, targetFile, objectHash, fileIndex, path));
+                return;
+            }
+
             long size = this.size;
             if (size <= 0) {
                 size = 10 * 1024;
             }
 
-            File tempFile = installer.getDownloader().download(url, fileVersion, size, to);
-            installer.queue(new InstallLogFileMover(log, tempFile, targetFile));
+            File tempFile = installer.getDownloader().download(url, fileVersion, size, to, hash);
+            installer.queue(tempFile, new InstallLogFileMover(log, tempFile, targetFile, objectHash, fileIndex, path));
         } else {
             log.add(to, to);
         }
     }
 
-    private boolean shouldUpdate(UpdateCache cache, File targetFile) throws IOException {
+    private boolean shouldUpdate(UpdateCache cache, FileIndex index, File targetFile) throws IOException {
         if (targetFile.exists() && isUserFile()) {
             return false;
         }
@@ -79,14 +92,21 @@ public class FileInstall extends ManifestEntry {
             return true;
         }
 
+        String path = FilenameUtils.normalize(getTargetPath());
+
         if (hash != null) {
+            if (index.isVerified(path, targetFile, hash)) {
+                return false;
+            }
+
             String existingHash = Files.hash(targetFile, hf).toString();
             if (existingHash.equalsIgnoreCase(hash)) {
+                index.put(path, targetFile, hash);
                 return false;
             }
         }
 
-        return cache.mark(FilenameUtils.normalize(getTargetPath()), getImpliedVersion());
+        return cache.mark(path, getImpliedVersion());
     }
 
 }
@@ -0,0 +1,174 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.persistence;
+
+import com.google.common.io.ByteSink;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A sink that writes to a temporary file next to the target file, which
+ * is synced to disk and then renamed over the target file once the stream
+ * is closed, so that the target file is never left half-written.
+ *
+ * <p>If writing to the stream fails, the target file is left untouched and the
+ * temporary file is deleted. Temporary files left behind by a crash are
+ * deleted the first time that the target file is written again.</p>
+ */
+class AtomicFileByteSink extends ByteSink {
+
+    private static final long STALE_TEMP_AGE = TimeUnit.HOURS.toMillis(1);
+    private static final Set<File> swept = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    private final File file;
+
+    public AtomicFileByteSink(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public OutputStream openStream() throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (swept.add(file.getAbsoluteFile())) {
+            removeStaleTempFiles(dir);
+        }
+
+        File tempFile = File.createTempFile(file.getName(), ".tmp", dir);
+        return new AtomicFileOutputStream(tempFile);
+    }
+
+    /**
+     * Delete the temporary files for the target file that are too old to
+     * still be written to.
+     *
+     * @param dir the directory of the target file
+     */
+    private void removeStaleTempFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        String prefix = file.getName();
+        long cutoff = System.currentTimeMillis() - STALE_TEMP_AGE;
+
+        for (File candidate : files) {
+            String name = candidate.getName();
+            if (name.startsWith(prefix) && name.endsWith(".tmp")
+                    && isDigits(name.substring(prefix.length(), name.length() - 4))
+                    && candidate.lastModified() < cutoff) {
+                candidate.delete();
+            }
+        }
+    }
+
+    private static boolean isDigits(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class AtomicFileOutputStream extends OutputStream {
+
+        private final File tempFile;
+        private final FileOutputStream out;
+        private boolean failed;
+        private boolean closed;
+
+        private AtomicFileOutputStream(File tempFile) throws IOException {
+            this.tempFile = tempFile;
+            this.out = new FileOutputStream(tempFile);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            try {
+                if (!failed) {
+                    out.flush();
+                    out.getFD().sync();
+                }
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            } finally {
+                out.close();
+                if (failed) {
+                    tempFile.delete();
+                }
+            }
+
+            if (failed) {
+                throw new IOException("Not replacing " + file.getAbsolutePath() + " because writing to it failed");
+            }
+
+            try {
+                try {
+                    Files.move(tempFile.toPath(), file.toPath(),
+                            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                tempFile.delete();
+                throw e;
+            }
+        }
+
+    }
+
+}
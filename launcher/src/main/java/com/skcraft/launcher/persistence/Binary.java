@@ -0,0 +1,27 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.persistence;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Classes that are annotated with this will be saved in the binary Smile
+ * format, rather than as JSON, when saved using
+ * {@link com.skcraft.launcher.persistence.Persistence}.
+ *
+ * <p>This is meant for large data files that the user never edits by hand,
+ * where Smile is both smaller and quicker to read. Files are read in
+ * whichever format they are in, so files that were saved as JSON are
+ * converted the next time that they are saved.</p>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Binary {
+}
@@ -10,18 +10,25 @@ import com.fasterxml.jackson.core.PrettyPrinter;
 import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.google.common.io.ByteSink;
 import com.google.common.io.ByteSource;
 import com.google.common.io.Closer;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.NonNull;
 import lombok.extern.java.Log;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.OutputStream;
+import java.io.*;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 /**
@@ -38,12 +45,30 @@ import java.util.logging.Level;
 public final class Persistence {
 
     private static final ObjectMapper mapper = new ObjectMapper();
+    private static final ObjectMapper binaryMapper = new ObjectMapper(new SmileFactory());
+    private static final byte[] SMILE_HEADER = { ':', ')', '\n' };
     private static final WeakHashMap<Object, ByteSink> bound = new WeakHashMap<Object, ByteSink>();
+    private static final WeakHashMap<ByteSink, File> sinkFiles = new WeakHashMap<ByteSink, File>();
     public static final DefaultPrettyPrinter L2F_LIST_PRETTY_PRINTER;
 
+    private static final long COALESCE_DELAY = 500;
+    private static final Object writeLock = new Object();
+    private static final Map<ByteSink, PendingWrite> pending = new LinkedHashMap<ByteSink, PendingWrite>();
+    private static final Set<File> writing = new HashSet<File>();
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("Persistence Writer").setDaemon(true).build());
+    private static boolean flushScheduled;
+
     static {
         L2F_LIST_PRETTY_PRINTER = new DefaultPrettyPrinter();
         L2F_LIST_PRETTY_PRINTER.indentArraysWith(DefaultIndenter.SYSTEM_LINEFEED_INSTANCE);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, "Persistence Shutdown Flush"));
     }
 
     private Persistence() {
@@ -68,36 +93,151 @@ public final class Persistence {
      * @throws java.io.IOException on save error
      */
     public static void commit(@NonNull Object object) throws IOException {
-        ByteSink sink;
-        synchronized (bound) {
-            sink = bound.get(object);
-            if (sink == null) {
-                throw new IOException("Cannot persist unbound object: " + object);
-            }
-        }
+        ByteSink sink = getSink(object);
+        byte[] data = getMapper(object.getClass()).writeValueAsBytes(object);
 
-        Closer closer = Closer.create();
-        try {
-            OutputStream os = closer.register(sink.openBufferedStream());
-            mapper.writeValue(os, object);
-        } finally {
-            closer.close();
+        synchronized (writeLock) {
+            // This write supersedes any write of the object that is still pending
+            synchronized (pending) {
+                pending.remove(sink);
+            }
+            sink.write(data);
         }
     }
 
     /**
-     * Save an object to file, and send all errors to the log.
+     * Save an object to file in the background, and send all errors to the log.
+     *
+     * <p>The object is serialized right away, but it is written to disk
+     * after a short delay, so that when an object is committed several times
+     * in a row, only the last version is written.</p>
      *
      * @param object the object
      */
     public static void commitAndForget(@NonNull Object object)  {
         try {
-            commit(object);
+            ByteSink sink = getSink(object);
+            byte[] data = getMapper(object.getClass()).writeValueAsBytes(object);
+
+            File file;
+            synchronized (bound) {
+                file = sinkFiles.get(sink);
+            }
+
+            synchronized (pending) {
+                pending.put(sink, new PendingWrite(object.getClass() + ": " + object, file, data));
+                if (!flushScheduled) {
+                    flushScheduled = true;
+                    writer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    }, COALESCE_DELAY, TimeUnit.MILLISECONDS);
+                }
+            }
         } catch (IOException e) {
             log.log(Level.WARNING, "Failed to save " + object.getClass() + ": " + object.toString(), e);
         }
     }
 
+    /**
+     * Write all objects that were committed in the background but have not
+     * been written to disk yet, and send all errors to the log.
+     */
+    public static void flush() {
+        synchronized (writeLock) {
+            Map<ByteSink, PendingWrite> writes;
+            synchronized (pending) {
+                writes = new LinkedHashMap<ByteSink, PendingWrite>(pending);
+                pending.clear();
+                flushScheduled = false;
+                for (PendingWrite write : writes.values()) {
+                    if (write.file != null) {
+                        writing.add(write.file);
+                    }
+                }
+            }
+
+            try {
+                for (Map.Entry<ByteSink, PendingWrite> entry : writes.entrySet()) {
+                    write(entry.getKey(), entry.getValue());
+                }
+            } finally {
+                synchronized (pending) {
+                    writing.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the object that was committed in the background to the given
+     * file, if it has not been written to disk yet, so that it can be
+     * read back. Writes to other files are left pending.
+     *
+     * @param file the file
+     */
+    private static void flush(File file) {
+        file = file.getAbsoluteFile();
+
+        synchronized (pending) {
+            if (!writing.contains(file) && !hasPendingWrite(file)) {
+                return;
+            }
+        }
+
+        // Also waits for a flush that is writing the file right now
+        synchronized (writeLock) {
+            ByteSink sink = null;
+            PendingWrite write = null;
+
+            synchronized (pending) {
+                Iterator<Map.Entry<ByteSink, PendingWrite>> it = pending.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<ByteSink, PendingWrite> entry = it.next();
+                    if (file.equals(entry.getValue().file)) {
+                        sink = entry.getKey();
+                        write = entry.getValue();
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+
+            if (write != null) {
+                write(sink, write);
+            }
+        }
+    }
+
+    private static boolean hasPendingWrite(File file) {
+        for (PendingWrite write : pending.values()) {
+            if (file.equals(write.file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void write(ByteSink sink, PendingWrite write) {
+        try {
+            sink.write(write.data);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to save " + write.description, e);
+        }
+    }
+
+    private static ByteSink getSink(Object object) throws IOException {
+        synchronized (bound) {
+            ByteSink sink = bound.get(object);
+            if (sink == null) {
+                throw new IOException("Cannot persist unbound object: " + object);
+            }
+            return sink;
+        }
+    }
+
     /**
      * Read an object from a byte source, without binding it.
      *
@@ -108,11 +248,28 @@ public final class Persistence {
      * @return an object
      */
     public static <V> V read(ByteSource source, Class<V> cls, boolean returnNull) {
+        // The source could be any file, so anything committed in the background has to be written
+        boolean hasPending;
+        synchronized (pending) {
+            hasPending = !pending.isEmpty();
+        }
+        if (hasPending) {
+            flush();
+        }
+
+        return readValue(source, cls, returnNull);
+    }
+
+    private static <V> V readValue(ByteSource source, Class<V> cls, boolean returnNull) {
         V object;
         Closer closer = Closer.create();
 
         try {
-            object = mapper.readValue(closer.register(source.openBufferedStream()), cls);
+            InputStream is = closer.register(source.openBufferedStream());
+            if (!is.markSupported()) {
+                is = new BufferedInputStream(is);
+            }
+            object = (isBinary(is) ? binaryMapper : mapper).readValue(is, cls);
         } catch (IOException e) {
             if (!(e instanceof FileNotFoundException)) {
                 log.log(Level.INFO, "Failed to load" + cls.getCanonicalName(), e);
@@ -151,7 +308,9 @@ public final class Persistence {
      * @return an object
      */
     public static <V> V read(File file, Class<V> cls, boolean returnNull) {
-        return read(Files.asByteSource(file), cls, returnNull);
+        // Make sure that anything committed to the file in the background can be read back
+        flush(file);
+        return readValue(Files.asByteSource(file), cls, returnNull);
     }
 
 
@@ -178,7 +337,7 @@ public final class Persistence {
      */
     public static <V> V load(File file, Class<V> cls, boolean returnNull) {
         ByteSource source = Files.asByteSource(file);
-        ByteSink sink = new MkdirByteSink(Files.asByteSink(file), file.getParentFile());
+        ByteSink sink = new MkdirByteSink(new AtomicFileByteSink(file), file.getAbsoluteFile().getParentFile());
 
         Scrambled scrambled = cls.getAnnotation(Scrambled.class);
         if (cls.getAnnotation(Scrambled.class) != null) {
@@ -186,7 +345,11 @@ public final class Persistence {
             sink = new ScramblingSinkFilter(sink, scrambled.value());
         }
 
-        V object = read(source, cls, returnNull);
+        flush(file);
+        V object = readValue(source, cls, returnNull);
+        synchronized (bound) {
+            sinkFiles.put(sink, file.getAbsoluteFile());
+        }
         Persistence.bind(object, sink);
         return object;
     }
@@ -226,11 +389,58 @@ public final class Persistence {
      * @throws java.io.IOException on I/O error
      */
     public static void write(File file, Object object, PrettyPrinter prettyPrinter) throws IOException {
-        file.getParentFile().mkdirs();
-        if (prettyPrinter != null) {
-            mapper.writer(prettyPrinter).writeValue(file, object);
+        byte[] data;
+        if (object.getClass().getAnnotation(Binary.class) != null) {
+            data = binaryMapper.writeValueAsBytes(object);
+        } else if (prettyPrinter != null) {
+            data = mapper.writer(prettyPrinter).writeValueAsBytes(object);
         } else {
-            mapper.writeValue(file, object);
+            data = mapper.writeValueAsBytes(object);
+        }
+        new MkdirByteSink(new AtomicFileByteSink(file), file.getAbsoluteFile().getParentFile()).write(data);
+    }
+
+    private static class PendingWrite {
+        private final String description;
+        private final File file;
+        private final byte[] data;
+
+        private PendingWrite(String description, File file, byte[] data) {
+            this.description = description;
+            this.file = file;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Get the mapper for the format that the given class is saved in.
+     *
+     * @param cls the class
+     * @return the mapper
+     */
+    private static ObjectMapper getMapper(Class<?> cls) {
+        return cls.getAnnotation(Binary.class) != null ? binaryMapper : mapper;
+    }
+
+    /**
+     * Check whether a stream starts with the Smile header, leaving the
+     * stream at its start.
+     *
+     * @param is the stream, which must support marking
+     * @return true if the data is in the Smile format
+     * @throws IOException on I/O error
+     */
+    private static boolean isBinary(InputStream is) throws IOException {
+        is.mark(SMILE_HEADER.length);
+        try {
+            for (byte b : SMILE_HEADER) {
+                if (is.read() != b) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            is.reset();
         }
     }
 
@@ -39,8 +39,7 @@ public class UpdateChecker implements Callable<LatestVersionInfo> {
             LatestVersionInfo versionInfo = HttpRequest.get(url)
                     .execute()
                     .expectResponseCode(200)
-                    .returnContent()
-                    .asJson(LatestVersionInfo.class);
+                    .returnJson(LatestVersionInfo.class);
 
             ComparableVersion current = new ComparableVersion(launcher.getVersion());
             ComparableVersion latest = new ComparableVersion(versionInfo.getVersion());
@@ -9,6 +9,8 @@ package com.skcraft.launcher.update;
 import com.google.common.base.Strings;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
+import com.skcraft.concurrency.DefaultProgress;
+import com.skcraft.concurrency.ProgressObservable;
 import com.skcraft.launcher.AssetsRoot;
 import com.skcraft.launcher.Instance;
 import com.skcraft.launcher.Launcher;
@@ -67,6 +69,7 @@ public abstract class BaseUpdater {
     private final Launcher launcher;
     private final Environment environment = Environment.getInstance();
     private final List<Runnable> executeOnCompletion = new ArrayList<Runnable>();
+    private StaleFileCleaner staleFileCleaner;
 
     protected BaseUpdater(@NonNull Launcher launcher) {
         this.launcher = launcher;
@@ -78,19 +81,41 @@ public abstract class BaseUpdater {
         }
     }
 
+    /**
+     * Get the progress of the removal of old files, which happens
+     * during {@link #complete()}.
+     *
+     * @return the progress
+     */
+    protected ProgressObservable getCleanupProgress() {
+        StaleFileCleaner cleaner = staleFileCleaner;
+        if (cleaner != null) {
+            return cleaner;
+        } else {
+            return new DefaultProgress(-1, SharedLocale.tr("installer.installing"));
+        }
+    }
+
     protected Manifest installPackage(@NonNull Installer installer, @NonNull Instance instance) throws Exception {
         final File contentDir = instance.getContentDir();
         final File logPath = new File(instance.getDir(), "install_log.json");
         final File cachePath = new File(instance.getDir(), "update_cache.json");
+        final File indexPath = new File(instance.getDir(), "file_index.json");
         final File featuresPath = new File(instance.getDir(), "features.json");
 
         // Make sure the temp dir exists
         installer.getTempDir().mkdirs();
 
+        // Finish removing old files if the last update was interrupted while doing so
+        final StaleFileCleaner cleaner = new StaleFileCleaner(contentDir, instance.getCleanupJournalPath());
+        staleFileCleaner = cleaner;
+        cleaner.resume();
+
         final InstallLog previousLog = Persistence.read(logPath, InstallLog.class);
         final InstallLog currentLog = new InstallLog();
         currentLog.setBaseDir(contentDir);
         final UpdateCache updateCache = Persistence.read(cachePath, UpdateCache.class);
+        final FileIndex fileIndex = Persistence.read(indexPath, FileIndex.class);
         final FeatureCache featuresCache = Persistence.read(featuresPath, FeatureCache.class);
 
         Manifest manifest = HttpRequest
@@ -164,7 +189,7 @@ public abstract class BaseUpdater {
             loaders.put(entry.getKey(), new LocalLoader(entry.getValue(), localFilesMap));
         }
 
-        InstallExtras extras = new InstallExtras(contentDir, loaders);
+        InstallExtras extras = new InstallExtras(contentDir, loaders, launcher.getObjectStore(), fileIndex);
         for (ManifestEntry entry : manifest.getTasks()) {
             entry.install(installer, currentLog, updateCache, extras);
         }
@@ -172,16 +197,20 @@ public abstract class BaseUpdater {
         executeOnCompletion.add(new Runnable() {
             @Override
             public void run() {
-                for (Map.Entry<String, Set<String>> entry : previousLog.getEntrySet()) {
-                    for (String path : entry.getValue()) {
-                        if (!currentLog.has(path)) {
-                            new File(contentDir, path).delete();
-                        }
-                    }
+                try {
+                    cleaner.execute(previousLog.getStalePaths(currentLog));
+                } catch (InterruptedException e) {
+                    // The journal lets the next update or launch finish the job, but the
+                    // data files must not be written, as they would describe a finished update
+                    Thread.currentThread().interrupt();
+                    return;
                 }
 
                 writeDataFile(logPath, currentLog);
                 writeDataFile(cachePath, updateCache);
+
+                fileIndex.prune(contentDir);
+                writeDataFile(indexPath, fileIndex);
                 writeDataFile(featuresPath, featuresCache);
             }
         });
@@ -198,11 +227,8 @@ public abstract class BaseUpdater {
             long size = artifact.getSize();
             if (size <= 0) size = JAR_SIZE_ESTIMATE;
 
-            File tempFile = installer.getDownloader().download(url, "", size, jarFile.getName());
-            installer.queue(new FileMover(tempFile, jarFile));
-            if (artifact.getHash() != null) {
-                installer.queue(new FileVerify(jarFile, jarFile.getName(), artifact.getHash()));
-            }
+            File tempFile = installer.getDownloader().download(url, "", size, jarFile.getName(), artifact.getHash());
+            installer.queue(tempFile, new FileMover(tempFile, jarFile));
             log.info("Installing " + jarFile.getName() + " from " + url);
         }
     }
@@ -242,8 +268,8 @@ public abstract class BaseUpdater {
                 }
 
                 File tempFile = installer.getDownloader().download(
-                        urls, "", entry.getValue().getSize(), entry.getKey());
-                installer.queue(new FileMover(tempFile, targetFile));
+                        urls, "", entry.getValue().getSize(), entry.getKey(), hash);
+                installer.queue(tempFile, new FileMover(tempFile, targetFile));
                 log.info("Fetching " + path + " from " + urls);
                 downloading.add(path);
             }
@@ -309,12 +335,9 @@ public abstract class BaseUpdater {
                     }
 
                     File tempFile = installer.getDownloader().download(urls, "", size,
-                            library.getName() + ".jar");
+                            library.getName() + ".jar", artifact.getSha1());
                     log.info("Fetching " + path + " from " + urls);
-                    installer.queue(new FileMover(tempFile, targetFile));
-                    if (artifact.getSha1() != null) {
-                        installer.queue(new FileVerify(targetFile, library.getName(), artifact.getSha1()));
-                    }
+                    installer.queue(tempFile, new FileMover(tempFile, targetFile));
                 }
             }
         }
@@ -329,10 +352,10 @@ public abstract class BaseUpdater {
 
             if (embeddedConfig == null) {
                 // No embedded config, just use whatever the server gives us
-                File tempFile = installer.getDownloader().download(url(file.getUrl()), file.getHash(), file.getSize(), file.getId());
+                File tempFile = installer.getDownloader().download(url(file.getUrl()), file.getHash(), file.getSize(), file.getId(), file.getHash());
 
                 log.info("Downloading logging config " + file.getId() + " from " + file.getUrl());
-                installer.queue(new FileMover(tempFile, targetFile));
+                installer.queue(tempFile, new FileMover(tempFile, targetFile));
             } else if (!targetFile.exists() || FileUtils.getShaHash(targetFile).equals(file.getHash())) {
                 // Use our embedded replacement
 
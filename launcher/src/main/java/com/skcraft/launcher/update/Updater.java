@@ -35,6 +35,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 
+import static com.skcraft.launcher.LauncherUtils.checkInterrupted;
 import static com.skcraft.launcher.util.HttpRequest.url;
 
 @Log
@@ -57,6 +58,7 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
         super(launcher);
 
         this.installer = new Installer(launcher.getInstallerDir());
+        this.installer.setPipelined(true);
         this.launcher = launcher;
         this.instance = instance;
 
@@ -135,15 +137,13 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
         ReleaseList releases = HttpRequest.get(url)
                 .execute()
                 .expectResponseCode(200)
-                .returnContent()
-                .asJson(ReleaseList.class);
+                .returnJson(ReleaseList.class);
 
         Version relVersion = releases.find(manifest.getGameVersion());
         return HttpRequest.get(url(relVersion.getUrl()))
                 .execute()
                 .expectResponseCode(200)
-                .returnContent()
-                .asJson(VersionManifest.class);
+                .returnJson(VersionManifest.class);
     }
 
     /**
@@ -198,18 +198,26 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
         progress = new DefaultProgress(-1, SharedLocale.tr("instanceUpdater.collectingAssets"));
         installAssets(installer, version, url(version.getAssetIndex().getUrl()), assetsSources);
 
-        log.info("Executing download phase...");
-        progress = ProgressFilter.between(installer.getDownloader(), 0, 0.98);
-        installer.download();
+        try {
+            log.info("Executing download phase...");
+            progress = ProgressFilter.between(installer.getDownloader(), 0, 0.98);
+            installer.download(launcher);
 
-        log.info("Executing install phase...");
-        progress = ProgressFilter.between(installer, 0.98, 1);
-        installer.execute(launcher);
+            log.info("Executing install phase...");
+            progress = ProgressFilter.between(installer, 0.98, 1);
+            installer.execute(launcher);
 
-        installer.executeLate(launcher);
+            installer.executeLate(launcher);
+        } finally {
+            // Also keep track of the objects that were stored before a failure
+            launcher.getObjectStore().commit();
+        }
 
         log.info("Completing...");
+        progress = getCleanupProgress();
         complete();
+        // Cancelling during the cleanup leaves the update unfinished
+        checkInterrupted();
 
         // Update the instance's information
         log.info("Writing instance information...");
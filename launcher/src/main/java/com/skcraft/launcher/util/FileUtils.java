@@ -1,5 +1,6 @@
 package com.skcraft.launcher.util;
 
+import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
@@ -10,8 +11,14 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class FileUtils {
+	private static final int HASH_BUFFER_SIZE = 1024 * 64;
+	private static final long MAP_WINDOW_SIZE = 1024 * 1024 * 64;
+
 	public static DownloadableFile saveStreamToObjectsDir(InputStream stream, File outputDir) throws IOException {
 		byte[] input = ByteStreams.toByteArray(stream);
 		HashFunction hf = Hashing.sha1();
@@ -32,12 +39,63 @@ public class FileUtils {
 		return entry;
 	}
 
+	/**
+	 * Compute the SHA-1 hash of a file, reading it through a fixed-size buffer.
+	 *
+	 * @param file the file
+	 * @return the hash, as a lowercase hex string
+	 * @throws IOException on I/O error
+	 */
 	public static String getShaHash(File file) throws IOException {
+		return getShaHash(file, false);
+	}
+
+	/**
+	 * Compute the SHA-1 hash of a file.
+	 *
+	 * <p>Memory use does not depend on the size of the file. If {@code mapped}
+	 * is true, the file is read through a memory-mapped {@link FileChannel}
+	 * window instead of a heap buffer, which is faster for large files. Mapped
+	 * files can stay locked on Windows until the mapping is garbage collected,
+	 * so it should not be used for files that are about to be deleted
+	 * or replaced.</p>
+	 *
+	 * @param file the file
+	 * @param mapped true to memory-map the file
+	 * @return the hash, as a lowercase hex string
+	 * @throws IOException on I/O error
+	 */
+	public static String getShaHash(File file, boolean mapped) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
 		FileInputStream stream = new FileInputStream(file);
-		byte[] input = ByteStreams.toByteArray(stream);
-		String res = Hashing.sha1().hashBytes(input).toString();
 
-		stream.close();
-		return res;
+		try {
+			if (mapped) {
+				FileChannel channel = stream.getChannel();
+				long size = channel.size();
+
+				// The digest reads the mapped window directly, without copying it to the heap
+				for (long position = 0; position < size; position += MAP_WINDOW_SIZE) {
+					digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+							Math.min(MAP_WINDOW_SIZE, size - position)));
+				}
+			} else {
+				byte[] buffer = new byte[HASH_BUFFER_SIZE];
+				int len;
+				while ((len = stream.read(buffer)) >= 0) {
+					digest.update(buffer, 0, len);
+				}
+			}
+		} finally {
+			stream.close();
+		}
+
+		return HashCode.fromBytes(digest.digest()).toString();
 	}
 }
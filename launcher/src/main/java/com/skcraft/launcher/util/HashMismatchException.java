@@ -0,0 +1,27 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.util;
+
+import lombok.Getter;
+
+import java.io.IOException;
+
+/**
+ * Thrown when downloaded content does not match its expected hash.
+ */
+public class HashMismatchException extends IOException {
+
+    @Getter private final String expected;
+    @Getter private final String actual;
+
+    public HashMismatchException(String message, String expected, String actual) {
+        super(message + ": expected " + expected + ", got " + actual);
+        this.expected = expected;
+        this.actual = actual;
+    }
+
+}
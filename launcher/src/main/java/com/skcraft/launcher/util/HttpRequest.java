@@ -8,6 +8,7 @@ package com.skcraft.launcher.util;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.BaseEncoding;
 import com.skcraft.concurrency.ProgressObservable;
 import lombok.Data;
 import lombok.Getter;
@@ -21,6 +22,8 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 import static com.skcraft.launcher.LauncherUtils.checkInterrupted;
@@ -29,12 +32,17 @@ import static org.apache.commons.io.IOUtils.closeQuietly;
 /**
  * A simple fluent interface for performing HTTP requests that uses
  * {@link java.net.HttpURLConnection} or {@link javax.net.ssl.HttpsURLConnection}.
+ * </p>
+ * Connections are not disconnected when a request is closed, so that
+ * {@link java.net.HttpURLConnection}'s keep-alive cache can reuse them (and
+ * skip the TLS handshake) for later requests to the same host.
  */
 @Log
 public class HttpRequest implements Closeable, ProgressObservable {
 
     private static final int READ_TIMEOUT = 1000 * 60 * 10;
     private static final int READ_BUFFER_SIZE = 1024 * 8;
+    private static final int MAX_IDLE_CONNECTIONS_PER_HOST = 16;
 
     private final ObjectMapper mapper = new ObjectMapper();
     private final Map<String, String> headers = new HashMap<String, String>();
@@ -50,6 +58,18 @@ public class HttpRequest implements Closeable, ProgressObservable {
     private PartialDownloadInfo resumeInfo = null;
     private long contentLength = -1;
     private long readBytes = 0;
+    private boolean closed;
+
+    private String expectedHash;
+    private MessageDigest digest;
+
+    static {
+        // The JDK only keeps 5 idle connections per host by default, which is
+        // fewer than the number of parallel downloads
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS_PER_HOST));
+        }
+    }
 
     /**
      * Create a new HTTP request.
@@ -99,6 +119,31 @@ public class HttpRequest implements Closeable, ProgressObservable {
         return this;
     }
 
+    /**
+     * Verify the SHA-1 hash of the content while it is being saved with
+     * {@link #saveContent(File)} or {@link #saveContent(OutputStream)}.
+     *
+     * <p>A {@link HashMismatchException} is thrown once all content has been
+     * read if the hash does not match.</p>
+     *
+     * @param hash the expected SHA-1 hash, or null to not verify the content
+     * @return this object
+     */
+    public HttpRequest expectSha1(String hash) {
+        expectedHash = hash;
+        digest = null;
+
+        if (hash != null) {
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        return this;
+    }
+
     /**
      * Execute the request.
      * <p/>
@@ -177,6 +222,7 @@ public class HttpRequest implements Closeable, ProgressObservable {
             case 308:
                 String location = conn.getHeaderField("Location");
                 redirectCount++;
+                discard(conn);
 
                 return runRequest(new URL(this.url, location));
             default:
@@ -268,6 +314,20 @@ public class HttpRequest implements Closeable, ProgressObservable {
         return conn.getResponseCode();
     }
 
+    /**
+     * Get the value of a response header.
+     *
+     * @param name the header name
+     * @return the value, or null if the header is not present
+     */
+    public String getHeaderField(String name) {
+        if (conn == null) {
+            throw new IllegalArgumentException("No connection has been made");
+        }
+
+        return conn.getHeaderField(name);
+    }
+
     /**
      * Check if the response code indicates a successful request.
      * @return True if response code is 2xx, false otherwise.
@@ -308,12 +368,19 @@ public class HttpRequest implements Closeable, ProgressObservable {
             throw new IllegalArgumentException("No input stream available");
         }
 
+        readContentLength();
+
         try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            int b = 0;
-            while ((b = inputStream.read()) != -1) {
+            int initialSize = contentLength > 0 && contentLength < Integer.MAX_VALUE ?
+                    (int) contentLength : READ_BUFFER_SIZE;
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(initialSize);
+
+            byte[] data = new byte[READ_BUFFER_SIZE];
+            int len;
+            while ((len = inputStream.read(data, 0, READ_BUFFER_SIZE)) >= 0) {
+                bos.write(data, 0, len);
+                readBytes += len;
                 checkInterrupted();
-                bos.write(b);
             }
             return new BufferedResponse(bos.toByteArray());
         } finally {
@@ -321,6 +388,52 @@ public class HttpRequest implements Closeable, ProgressObservable {
         }
     }
 
+    /**
+     * Deserialize the response from a JSON payload as it is read, without
+     * buffering it first.
+     *
+     * @param cls the class
+     * @return the object
+     * @throws java.io.IOException  on I/O error
+     * @throws InterruptedException on interruption
+     */
+    public <T> T returnJson(Class<T> cls) throws IOException, InterruptedException {
+        if (inputStream == null) {
+            throw new IllegalArgumentException("No input stream available");
+        }
+
+        try {
+            return mapper.readValue(new InterruptibleInputStream(inputStream), cls);
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException(e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Deserialize the response from a JSON payload as it is read, without
+     * buffering it first.
+     *
+     * @param type the type reference
+     * @return the object
+     * @throws java.io.IOException  on I/O error
+     * @throws InterruptedException on interruption
+     */
+    public <T> T returnJson(TypeReference<T> type) throws IOException, InterruptedException {
+        if (inputStream == null) {
+            throw new IllegalArgumentException("No input stream available");
+        }
+
+        try {
+            return mapper.readValue(new InterruptibleInputStream(inputStream), type);
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException(e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
     /**
      * Save the result to a file.
      *
@@ -335,6 +448,20 @@ public class HttpRequest implements Closeable, ProgressObservable {
         boolean shouldAppend = resumeInfo != null && getResponseCode() == 206;
 
         try {
+            if (shouldAppend && digest != null) {
+                // The hash has to cover the part that was saved by the previous attempt
+                FileInputStream fis = new FileInputStream(file);
+                try {
+                    byte[] data = new byte[READ_BUFFER_SIZE];
+                    int len;
+                    while ((len = fis.read(data)) >= 0) {
+                        digest.update(data, 0, len);
+                    }
+                } finally {
+                    closeQuietly(fis);
+                }
+            }
+
             fos = new FileOutputStream(file, shouldAppend);
             bos = new BufferedOutputStream(fos);
 
@@ -358,16 +485,7 @@ public class HttpRequest implements Closeable, ProgressObservable {
     public HttpRequest saveContent(OutputStream out) throws IOException, InterruptedException {
         BufferedInputStream bis;
 
-        try {
-            String field = conn.getHeaderField("Content-Length");
-            if (field != null) {
-                long len = Long.parseLong(field);
-                if (len >= 0) { // Let's just not deal with really big numbers
-                    contentLength = len;
-                }
-            }
-        } catch (NumberFormatException e) {
-        }
+        readContentLength();
 
         try {
             bis = new BufferedInputStream(inputStream);
@@ -376,6 +494,9 @@ public class HttpRequest implements Closeable, ProgressObservable {
             int len = 0;
             while ((len = bis.read(data, 0, READ_BUFFER_SIZE)) >= 0) {
                 out.write(data, 0, len);
+                if (digest != null) {
+                    digest.update(data, 0, len);
+                }
                 readBytes += len;
                 checkInterrupted();
             }
@@ -384,6 +505,14 @@ public class HttpRequest implements Closeable, ProgressObservable {
                 throw new IOException(String.format("Connection closed with %d bytes transferred, expected %d",
                         readBytes, contentLength));
             }
+
+            if (digest != null) {
+                String actualHash = BaseEncoding.base16().lowerCase().encode(digest.digest());
+                if (!actualHash.equalsIgnoreCase(expectedHash)) {
+                    throw new HashMismatchException("Downloaded content from " + url + " is corrupt",
+                            expectedHash, actualHash);
+                }
+            }
         } finally {
             close();
         }
@@ -391,6 +520,19 @@ public class HttpRequest implements Closeable, ProgressObservable {
         return this;
     }
 
+    private void readContentLength() {
+        try {
+            String field = conn.getHeaderField("Content-Length");
+            if (field != null) {
+                long len = Long.parseLong(field);
+                if (len >= 0) { // Let's just not deal with really big numbers
+                    contentLength = len;
+                }
+            }
+        } catch (NumberFormatException e) {
+        }
+    }
+
     public Optional<PartialDownloadInfo> canRetryPartial() {
         if (conn == null) {
             return Optional.empty();
@@ -429,7 +571,44 @@ public class HttpRequest implements Closeable, ProgressObservable {
 
     @Override
     public void close() throws IOException {
-        if (conn != null) conn.disconnect();
+        if (closed || conn == null) {
+            return;
+        }
+
+        closed = true;
+
+        if (inputStream != null) {
+            // Returns the connection to the keep-alive cache if the response
+            // was read completely, otherwise the socket gets closed
+            closeQuietly(inputStream);
+        } else {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Read and close the body of a response that is not used (such as for a
+     * redirect), so that the connection can be reused.
+     *
+     * @param conn the connection
+     */
+    private static void discard(HttpURLConnection conn) {
+        InputStream is = null;
+
+        try {
+            is = conn.getInputStream();
+            byte[] data = new byte[READ_BUFFER_SIZE];
+            while (is.read(data) >= 0) {
+                checkInterrupted();
+            }
+        } catch (IOException e) {
+            conn.disconnect();
+        } catch (InterruptedException e) {
+            conn.disconnect();
+            Thread.currentThread().interrupt();
+        } finally {
+            closeQuietly(is);
+        }
     }
 
     /**
@@ -569,7 +748,7 @@ public class HttpRequest implements Closeable, ProgressObservable {
          * @throws java.io.IOException on I/O error
          */
         public <T> T asJson(Class<T> cls) throws IOException {
-            return mapper.readValue(asString("UTF-8"), cls);
+            return mapper.readValue(data, cls);
         }
 
         /**
@@ -581,7 +760,7 @@ public class HttpRequest implements Closeable, ProgressObservable {
          * @throws java.io.IOException on I/O error
          */
         public <T> T asJson(TypeReference<T> type) throws IOException {
-            return mapper.readValue(asString("UTF-8"), type);
+            return mapper.readValue(data, type);
         }
 
         /**
@@ -644,6 +823,34 @@ public class HttpRequest implements Closeable, ProgressObservable {
         }
     }
 
+    /**
+     * Checks for interruption on every read, so that a thread parsing a
+     * response as it arrives can still be cancelled.
+     */
+    private static class InterruptibleInputStream extends FilterInputStream {
+        private InterruptibleInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkInterrupted();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkInterrupted();
+            return super.read(b, off, len);
+        }
+
+        private static void checkInterrupted() throws InterruptedIOException {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted while reading response");
+            }
+        }
+    }
+
     @Data
     public static class PartialDownloadInfo {
         private final long expectedLength;